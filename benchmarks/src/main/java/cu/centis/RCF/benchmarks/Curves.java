@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.benchmarks;
+
+import cu.centis.RCF.fitting.GaussianFit.GaussianFitter;
+import cu.centis.RCF.fitting.LinearFit.LinearFitter;
+import cu.centis.RCF.fitting.MeanFit.MeanFitter;
+import cu.centis.RCF.fitting.MultiGaussianFit.MultiGaussianFitter;
+import cu.centis.RCF.fitting.PolinomialFit.PolinomialFitter;
+import cu.centis.RCF.fitting.RobustFitter;
+import cu.centis.RCF.fitting.SineFit.SineFitter;
+import java.util.Random;
+
+/**
+ * Synthetic curves for every built-in fitter.
+ *
+ * @author alex.vergara
+ */
+public class Curves {
+
+    public static final double XMAX = 20.0;
+
+    public enum Model {
+
+        LINEAR {
+            @Override
+            double value(double x) {
+                return 1 + 2 * x;
+            }
+
+            @Override
+            public RobustFitter.MyAbstractCurveFitter create(double[] x, double[] y) {
+                return LinearFitter.create(x, y);
+            }
+        },
+        POLINOMIAL {
+            @Override
+            double value(double x) {
+                return 1 - 0.5 * x + 0.2 * x * x;
+            }
+
+            @Override
+            public RobustFitter.MyAbstractCurveFitter create(double[] x, double[] y) {
+                return PolinomialFitter.create(2, x, y);
+            }
+        },
+        GAUSSIAN {
+            @Override
+            double value(double x) {
+                return 1 + 9 * gauss(x, 10, 1);
+            }
+
+            @Override
+            public RobustFitter.MyAbstractCurveFitter create(double[] x, double[] y) {
+                return GaussianFitter.create(x, y);
+            }
+        },
+        MULTIGAUSSIAN {
+            @Override
+            double value(double x) {
+                return 1 + 9 * gauss(x, 6, 1) + 6 * gauss(x, 14, 1.5);
+            }
+
+            @Override
+            public RobustFitter.MyAbstractCurveFitter create(double[] x, double[] y) {
+                return MultiGaussianFitter.create(2, x, y);
+            }
+        },
+        SINE {
+            @Override
+            double value(double x) {
+                return 3 + 2 * Math.sin(2 * Math.PI * x / 5 + 0.5);
+            }
+
+            @Override
+            public RobustFitter.MyAbstractCurveFitter create(double[] x, double[] y) {
+                return SineFitter.create(x, y);
+            }
+        },
+        MEAN {
+            @Override
+            double value(double x) {
+                return 5;
+            }
+
+            @Override
+            public RobustFitter.MyAbstractCurveFitter create(double[] x, double[] y) {
+                return MeanFitter.create(x, y);
+            }
+        };
+
+        abstract double value(double x);
+
+        public abstract RobustFitter.MyAbstractCurveFitter create(double[] x, double[] y);
+    }
+
+    private static double gauss(double x, double c, double d) {
+        final double diff = x - c;
+        return Math.exp(-diff * diff / (2 * d * d));
+    }
+
+    private Curves() {
+    }
+
+    /**
+     *
+     * @param size number of points
+     * @return equally spaced abscissas in [0, XMAX)
+     */
+    public static double[] abscissas(int size) {
+        double[] x = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = XMAX * i / size;
+        }
+        return x;
+    }
+
+    /**
+     *
+     * @param model the curve model
+     * @param x the abscissas
+     * @param noise standard deviation of the gaussian noise
+     * @param outliers fraction of points shifted by 10 noise units (at least
+     * 1)
+     * @param seed random seed
+     * @return the noisy ordinates
+     */
+    public static double[] ordinates(Model model, double[] x, double noise, double outliers, long seed) {
+        Random random = new Random(seed);
+        double[] y = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = model.value(x[i]) + noise * random.nextGaussian();
+            if (random.nextDouble() < outliers) {
+                y[i] += 10 * Math.max(noise, 1);
+            }
+        }
+        return y;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.benchmarks;
+
+import cu.centis.RCF.fitting.RobustFitter;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of fitting, IRLS and goodness of fit for every built-in fitter
+ * over data sizes, noise and outlier levels. The goodness of fit is measured
+ * both from the cache of the fitter and cold, recomputed on every call.
+ *
+ * @author alex.vergara
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FitterBenchmark {
+
+    @Param({"LINEAR", "POLINOMIAL", "GAUSSIAN", "MULTIGAUSSIAN", "SINE", "MEAN"})
+    public Curves.Model model;
+
+    @Param({"10", "1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"0.1", "1.0"})
+    public double noise;
+
+    @Param({"0.0", "0.05"})
+    public double outliers;
+
+    @Param({"5"})
+    public int irlsIterations;
+
+    private RobustFitter.MyAbstractCurveFitter fitter;
+    private double[] weights;
+
+    /**
+     * A fitted fitter whose cached residuals are discarded before each
+     * invocation, resetting the (unit) weights is enough. The variance of y
+     * only depends on the data and stays cached. The per invocation setup
+     * dominates for the smallest sizes.
+     */
+    @State(Scope.Thread)
+    public static class Cold {
+
+        private RobustFitter.MyAbstractCurveFitter fitter;
+        private double[] weights;
+
+        @Setup
+        public void setup(FitterBenchmark benchmark) {
+            fitter = benchmark.fitter;
+            weights = benchmark.weights;
+        }
+
+        @Setup(Level.Invocation)
+        public void invalidate() {
+            fitter.setWeights(weights);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        double[] x = Curves.abscissas(size);
+        double[] y = Curves.ordinates(model, x, noise, outliers, 42);
+        fitter = model.create(x, y);
+        fitter.fit();
+        weights = new double[size];
+        Arrays.fill(weights, 1);
+    }
+
+    @Benchmark
+    public double[] fit() {
+        fitter.fit();
+        return fitter.getParams();
+    }
+
+    /**
+     * Full IRLS run starting from unit weights, so every invocation does the
+     * same work.
+     */
+    @Benchmark
+    public double[] runIRLS() {
+        fitter.initializeIRLS();
+        fitter.runIRLS(irlsIterations);
+        return fitter.getParams();
+    }
+
+    @Benchmark
+    public double getRSquared() {
+        return fitter.getRSquared();
+    }
+
+    @Benchmark
+    public double[] getResiduals() {
+        return fitter.getResiduals();
+    }
+
+    @Benchmark
+    public double getRSquaredCold(Cold cold) {
+        return cold.fitter.getRSquared();
+    }
+
+    @Benchmark
+    public double[] getResidualsCold(Cold cold) {
+        return cold.fitter.getResiduals();
+    }
+}
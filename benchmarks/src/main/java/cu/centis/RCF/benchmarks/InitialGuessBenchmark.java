@@ -0,0 +1,158 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.benchmarks;
+
+import cu.centis.RCF.MathUtils;
+import cu.centis.RCF.fitting.FitResult;
+import cu.centis.RCF.fitting.Initializers;
+import cu.centis.RCF.fitting.RobustFitter;
+import ij.plugin.filter.MaximumFinder;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Optimizer iterations to convergence starting from the original fixed
+ * guesses against the data driven ones of {@link Initializers}. The fits,
+ * iterations, evaluations and failed fits (not converged or R^2 below 0.5)
+ * are reported as totals per measurement iteration next to the time,
+ * iterations / fits gives the mean iterations to convergence.
+ *
+ * @author alex.vergara
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InitialGuessBenchmark {
+
+    public enum Guess {
+        LEGACY, DATA
+    }
+
+    @Param({"GAUSSIAN", "MULTIGAUSSIAN", "SINE"})
+    public Curves.Model model;
+
+    @Param({"100", "10000"})
+    public int size;
+
+    @Param({"0.1", "1.0"})
+    public double noise;
+
+    @Param({"LEGACY", "DATA"})
+    public Guess guess;
+
+    private RobustFitter.MyAbstractCurveFitter fitter;
+    private double[] x, y, w;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Counters {
+
+        public long fits, iterations, evaluations, failures;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            fits = 0;
+            iterations = 0;
+            evaluations = 0;
+            failures = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        x = Curves.abscissas(size);
+        y = Curves.ordinates(model, x, noise, 0, 42);
+        w = new double[size];
+        Arrays.fill(w, 1);
+        fitter = model.create(x, y);
+    }
+
+    @Benchmark
+    public FitResult fit(Counters counters) {
+        FitResult result;
+        counters.fits++;
+        try {
+            result = fitter.fit(x, y, w, guess == Guess.LEGACY ? legacy() : data());
+        } catch (RuntimeException ex) {
+            // too many evaluations or a singular problem
+            counters.failures++;
+            return null;
+        }
+        counters.iterations += result.getIterations();
+        counters.evaluations += result.getEvaluations();
+        if (!result.isConverged() || !(result.getRSquared() > 0.5)) {
+            counters.failures++;
+        }
+        return result;
+    }
+
+    private double[] data() {
+        switch (model) {
+            case GAUSSIAN:
+                return Initializers.gaussian(x, y);
+            case MULTIGAUSSIAN:
+                return Initializers.multiGaussian(x, y, 2);
+            default:
+                return Initializers.sine(x, y);
+        }
+    }
+
+    /**
+     * The guesses the fitters used before the initializers.
+     */
+    private double[] legacy() {
+        switch (model) {
+            case GAUSSIAN:
+                return new double[]{0.0, MathUtils.Max(y), MathUtils.Mean(x), 1.0};
+            case MULTIGAUSSIAN: {
+                final int npeaks = 2;
+                double[] initialGuess = new double[3 * npeaks + 1];
+                double max = MathUtils.Max(y);
+                int[] peakpos = MaximumFinder.findMaxima(y, 0.1 * max, false);
+                Arrays.sort(peakpos);
+                for (int i = 0; i < npeaks; i++) {
+                    initialGuess[3 * i + 1] = max;
+                    initialGuess[3 * i + 2] = x[peakpos[i < peakpos.length ? i : 0]];
+                    initialGuess[3 * i + 3] = 1.0;
+                }
+                return initialGuess;
+            }
+            default:
+                return new double[]{
+                    y[0],
+                    0.5 * (MathUtils.Max(y) - MathUtils.Min(y)),
+                    2 * Math.PI / y.length,
+                    0.0
+                };
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.benchmarks;
+
+import cu.centis.RCF.fitting.GaussianFit.GaussianFitter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Weighted Gaussian fit with the weights applied inside the model evaluation
+ * (implicit) against the DiagonalMatrix handed to the optimizer.
+ *
+ * @author alex.vergara
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WeightingBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    @Param({"true", "false"})
+    public boolean implicit;
+
+    private GaussianFitter fitter;
+    private double[] start;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        double[] x = new double[size];
+        double[] y = new double[size];
+        double[] w = new double[size];
+        for (int i = 0; i < size; i++) {
+            x[i] = 20.0 * i / size;
+            double diff = x[i] - 10;
+            y[i] = 1 + 9 * Math.exp(-diff * diff / 2) + 0.1 * random.nextGaussian();
+            w[i] = 0.5 + random.nextDouble();
+        }
+        fitter = GaussianFitter.create(x, y);
+        fitter.setWeights(w);
+        fitter.setImplicitWeights(implicit);
+        start = new double[]{0.5, 8, 9.5, 1.5};
+    }
+
+    @Benchmark
+    public double[] fit() {
+        fitter.fit(start);
+        return fitter.getParams();
+    }
+}
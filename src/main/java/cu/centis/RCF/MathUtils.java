@@ -16,12 +16,13 @@
 package cu.centis.RCF;
 
 import ij.util.Tools;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.apache.commons.math3.exception.DimensionMismatchException;
 import org.apache.commons.math3.exception.MathIllegalArgumentException;
+import org.apache.commons.math3.exception.NullArgumentException;
+import org.apache.commons.math3.exception.OutOfRangeException;
 import org.apache.commons.math3.stat.StatUtils;
-import org.apache.commons.math3.stat.descriptive.moment.Kurtosis;
-import org.apache.commons.math3.stat.descriptive.moment.Skewness;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
-import org.apache.commons.math3.stat.descriptive.rank.Median;
 
 /**
  * Enhanced version of StatUtils
@@ -32,6 +33,16 @@ public class MathUtils {
 
     final static private double SQRT2 = Math.sqrt(2);
 
+    /**
+     * Below this number of values the reductions run in the calling thread.
+     */
+    final static private int PARALLEL_THRESHOLD = 1 << 16;
+
+    /**
+     * Values per task of a parallel reduction.
+     */
+    final static private int CHUNK = 1 << 14;
+
     /**
      * Private Constructor
      */
@@ -45,21 +56,17 @@ public class MathUtils {
      */
     public static double Mean(final double[] array)
             throws MathIllegalArgumentException {
-        return StatUtils.mean(array);
+        return array.length < PARALLEL_THRESHOLD ? StatUtils.mean(array) : Statistics(array).getMean();
     }
 
     /**
      *
-     * @param array the array values
-     * @return the mean of the array values
+     * @param array the array values, rows may have different lengths
+     * @return the mean of all the array values
      */
     public static double Mean(final double[][] array)
             throws MathIllegalArgumentException {
-        double tmean = Mean(array[0]);
-        for (int i = 1; i < array.length; i++) {
-            tmean += Mean(array[i]);
-        }
-        return tmean / array.length;
+        return Statistics(array).getMean();
     }
 
     /**
@@ -69,7 +76,185 @@ public class MathUtils {
      */
     public static double Median(final double[] array)
             throws MathIllegalArgumentException {
-        return new Median().evaluate(array);
+        return Median(array, new double[array.length]);
+    }
+
+    /**
+     * Median by quickselect, linear time and no allocation.
+     *
+     * @param array the array values
+     * @param work buffer of at least the array length, may be the array
+     * itself which is then reordered
+     * @return the median of the array values, NaN if empty
+     */
+    public static double Median(final double[] array, final double[] work)
+            throws MathIllegalArgumentException {
+        return Quantile(array, 0.5, work);
+    }
+
+    /**
+     * Quantile with linear interpolation between order statistics (R type 7,
+     * the median is the mean of the middle values for even lengths).
+     *
+     * @param array the array values
+     * @param p the probability, between 0 and 1
+     * @param work buffer of at least the array length, may be the array
+     * itself which is then reordered
+     * @return the quantile of the array values, NaN if empty
+     */
+    public static double Quantile(final double[] array, double p, final double[] work)
+            throws MathIllegalArgumentException {
+        if (!(p >= 0 && p <= 1)) {
+            throw new OutOfRangeException(p, 0, 1);
+        }
+        final int n = copy(array, work);
+        if (n == 0) {
+            return Double.NaN;
+        }
+        final double h = (n - 1) * p;
+        final int lo = (int) h;
+        final double value = select(work, 0, n, lo);
+        if (lo == n - 1 || h == lo) {
+            return value;
+        }
+        // after the selection the next order statistic is the min above lo
+        double next = work[lo + 1];
+        for (int i = lo + 2; i < n; i++) {
+            next = Math.min(next, work[i]);
+        }
+        return value + (h - lo) * (next - value);
+    }
+
+    /**
+     * Median absolute deviation from the median, not scaled (divide by
+     * 0.6745 to estimate the standard deviation of gaussian data).
+     *
+     * @param array the array values
+     * @param work buffer of at least the array length, may be the array
+     * itself which is then overwritten
+     * @return the MAD of the array values, NaN if empty
+     */
+    public static double MAD(final double[] array, final double[] work)
+            throws MathIllegalArgumentException {
+        return MAD(array, Median(array, work), work);
+    }
+
+    /**
+     * Median absolute deviation from a given center, e.g. 0 for residuals
+     * that should be centered.
+     *
+     * @param array the array values
+     * @param center the value the deviations are measured from
+     * @param work buffer of at least the array length, may be the array
+     * itself which is then overwritten
+     * @return the median absolute deviation, NaN if empty
+     */
+    public static double MAD(final double[] array, double center, final double[] work)
+            throws MathIllegalArgumentException {
+        for (int i = 0; i < array.length; i++) {
+            work[i] = Math.abs(array[i] - center);
+        }
+        return Median(work, work);
+    }
+
+    /**
+     *
+     * @param array the array values
+     * @return the MAD of the array values
+     */
+    public static double MAD(final double[] array)
+            throws MathIllegalArgumentException {
+        return MAD(array, new double[array.length]);
+    }
+
+    /**
+     * Mean of the values left after discarding the given fraction of the
+     * lowest and of the highest ones.
+     *
+     * @param array the array values
+     * @param fraction the fraction discarded at each end, below 0.5
+     * @param work buffer of at least the array length, may be the array
+     * itself which is then reordered
+     * @return the trimmed mean of the array values, NaN if empty
+     */
+    public static double TrimmedMean(final double[] array, double fraction, final double[] work)
+            throws MathIllegalArgumentException {
+        if (!(fraction >= 0 && fraction < 0.5)) {
+            throw new OutOfRangeException(fraction, 0, 0.5);
+        }
+        final int n = copy(array, work);
+        if (n == 0) {
+            return Double.NaN;
+        }
+        final int lo = (int) (fraction * n);
+        final int hi = n - 1 - lo;
+        select(work, 0, n, lo);
+        select(work, lo, n, hi);
+        double sum = 0;
+        for (int i = lo; i <= hi; i++) {
+            sum += work[i];
+        }
+        return sum / (hi - lo + 1);
+    }
+
+    private static int copy(final double[] array, final double[] work) {
+        if (work.length < array.length) {
+            throw new DimensionMismatchException(work.length, array.length);
+        }
+        if (work != array) {
+            System.arraycopy(array, 0, work, 0, array.length);
+        }
+        return array.length;
+    }
+
+    /**
+     * Hoare quickselect with median of three pivots. On return the k-th
+     * smallest value of a[from, to) is at k, with no larger value before and
+     * no smaller one after it.
+     *
+     * @return a[k]
+     */
+    private static double select(final double[] a, int from, int to, final int k) {
+        int left = from, right = to - 1;
+        while (right > left) {
+            final int mid = (left + right) >>> 1;
+            if (a[mid] < a[left]) {
+                swap(a, mid, left);
+            }
+            if (a[right] < a[left]) {
+                swap(a, right, left);
+            }
+            if (a[right] < a[mid]) {
+                swap(a, right, mid);
+            }
+            final double pivot = a[mid];
+            int i = left, j = right;
+            while (i <= j) {
+                while (a[i] < pivot) {
+                    i++;
+                }
+                while (a[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(a, i++, j--);
+                }
+            }
+            if (k <= j) {
+                right = j;
+            } else if (k >= i) {
+                left = i;
+            } else {
+                break;
+            }
+        }
+        return a[k];
+    }
+
+    private static void swap(final double[] a, int i, int j) {
+        final double t = a[i];
+        a[i] = a[j];
+        a[j] = t;
     }
 
     /**
@@ -90,7 +275,7 @@ public class MathUtils {
      */
     public static double Min(final double[] array)
             throws MathIllegalArgumentException {
-        return StatUtils.min(array);
+        return array.length < PARALLEL_THRESHOLD ? StatUtils.min(array) : extrema(new double[][]{array}).min;
     }
 
     /**
@@ -133,11 +318,7 @@ public class MathUtils {
      */
     public static double Min(final double[][] array)
             throws MathIllegalArgumentException {
-        double tmin = Min(array[0]);
-        for (int i = 1; i < array.length; i++) {
-            tmin = Math.min(tmin, Min(array[i]));
-        }
-        return tmin;
+        return extrema(array).min;
     }
 
     /**
@@ -157,13 +338,7 @@ public class MathUtils {
      */
     public static float Min(final float[][] array)
             throws MathIllegalArgumentException {
-        double[] a = Tools.getMinMax(array[0]);
-        float tmin = (float) a[0];
-        for (int i = 1; i < array.length; i++) {
-            a = Tools.getMinMax(array[i]);
-            tmin = (float) Math.min(tmin, a[0]);
-        }
-        return tmin;
+        return (float) extrema(array).min;
     }
 
     /**
@@ -191,7 +366,7 @@ public class MathUtils {
      */
     public static double Max(final double[] array)
             throws MathIllegalArgumentException {
-        return StatUtils.max(array);
+        return array.length < PARALLEL_THRESHOLD ? StatUtils.max(array) : extrema(new double[][]{array}).max;
     }
 
     /**
@@ -258,31 +433,70 @@ public class MathUtils {
     /**
      *
      * @param array the array values
-     * @return the min of the array values
+     * @return the max of the array values
      */
     public static double Max(final double[][] array)
             throws MathIllegalArgumentException {
-        double tmax = Max(array[0]);
-        for (int i = 1; i < array.length; i++) {
-            tmax = Math.min(tmax, Max(array[i]));
-        }
-        return tmax;
+        return extrema(array).max;
     }
 
     /**
      *
      * @param array the array values
-     * @return the min of the array values
+     * @return the max of the array values
      */
     public static float Max(final float[][] array)
             throws MathIllegalArgumentException {
-        double[] a = Tools.getMinMax(array[0]);
-        float tmax = (float) a[1];
-        for (int i = 1; i < array.length; i++) {
-            a = Tools.getMinMax(array[i]);
-            tmax = (float) Math.min(tmax, a[1]);
+        return (float) extrema(array).max;
+    }
+
+    /**
+     *
+     * @param array the array values
+     * @return the mean of the array values, accumulated in double precision
+     */
+    public static double Mean(final float[] array)
+            throws MathIllegalArgumentException {
+        return Statistics(array).getMean();
+    }
+
+    /**
+     *
+     * @param array the array values
+     * @return the variance of the array values, accumulated in double
+     * precision
+     */
+    public static double Variance(final float[] array)
+            throws MathIllegalArgumentException {
+        return Statistics(array).getVariance();
+    }
+
+    /**
+     *
+     * @param array the array values
+     * @return the standard deviation of the array values
+     */
+    public static double StdDev(final float[] array)
+            throws MathIllegalArgumentException {
+        return Statistics(array).getStandardDeviation();
+    }
+
+    /**
+     *
+     * @param array the array values
+     * @return the sum of squares of the array values, accumulated in double
+     * precision
+     */
+    public static double SumOfSquares(final float[] array)
+            throws MathIllegalArgumentException {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        double sum = 0;
+        for (float e : array) {
+            sum += (double) e * e;
         }
-        return tmax;
+        return sum;
     }
 
     /**
@@ -292,7 +506,291 @@ public class MathUtils {
      */
     public static double Variance(final double[] array)
             throws MathIllegalArgumentException {
-        return StatUtils.variance(array);
+        return array.length < PARALLEL_THRESHOLD ? StatUtils.variance(array) : Statistics(array).getVariance();
+    }
+
+    /**
+     *
+     * @param array the array values, rows may have different lengths
+     * @return the variance of all the array values
+     */
+    public static double Variance(final double[][] array)
+            throws MathIllegalArgumentException {
+        return Statistics(array).getVariance();
+    }
+
+    /**
+     * All the descriptive statistics of the array in a single traversal,
+     * cheaper than calling the methods of each statistic.
+     *
+     * @param array the array values
+     * @return the statistics of the array values
+     */
+    public static StreamingStatistics Statistics(final double[] array)
+            throws MathIllegalArgumentException {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        return reduce(new double[][]{array}, null, MOMENTS);
+    }
+
+    /**
+     *
+     * @param array the array values, rows may have different lengths
+     * @return the statistics of all the array values
+     */
+    public static StreamingStatistics Statistics(final double[][] array)
+            throws MathIllegalArgumentException {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        return reduce(array, null, MOMENTS);
+    }
+
+    /**
+     *
+     * @param array the array values
+     * @return the statistics of the array values, accumulated in double
+     * precision
+     */
+    public static StreamingStatistics Statistics(final float[] array)
+            throws MathIllegalArgumentException {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        return reduce(null, new float[][]{array}, MOMENTS);
+    }
+
+    /**
+     *
+     * @param array the array values, rows may have different lengths
+     * @return the statistics of all the array values, accumulated in double
+     * precision
+     */
+    public static StreamingStatistics Statistics(final float[][] array)
+            throws MathIllegalArgumentException {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        return reduce(null, array, MOMENTS);
+    }
+
+    /**
+     *
+     * @return the count, extrema and sums of the array values
+     */
+    private static Extrema extrema(final double[][] array) {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        return reduce(array, null, EXTREMA);
+    }
+
+    /**
+     *
+     * @return the count, extrema and sums of the array values, accumulated in
+     * double precision
+     */
+    private static Extrema extrema(final float[][] array) {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        return reduce(null, array, EXTREMA);
+    }
+
+    /**
+     * Partial state of a reduction over chunks of the rows.
+     */
+    private interface Kernel<T> {
+
+        T create();
+
+        void add(T state, double[] row, int from, int to);
+
+        void add(T state, float[] row, int from, int to);
+
+        void merge(T state, T other);
+    }
+
+    /**
+     * All the moments, for the statistics that need them.
+     */
+    private static final Kernel<StreamingStatistics> MOMENTS = new Kernel<StreamingStatistics>() {
+        @Override
+        public StreamingStatistics create() {
+            return new StreamingStatistics();
+        }
+
+        @Override
+        public void add(StreamingStatistics state, double[] row, int from, int to) {
+            state.addAll(row, from, to);
+        }
+
+        @Override
+        public void add(StreamingStatistics state, float[] row, int from, int to) {
+            state.addAll(row, from, to);
+        }
+
+        @Override
+        public void merge(StreamingStatistics state, StreamingStatistics other) {
+            state.merge(other);
+        }
+    };
+
+    /**
+     * Only the extrema and the sums, a single cheap pass for Min, Max and
+     * SumOfSquares.
+     */
+    private static final Kernel<Extrema> EXTREMA = new Kernel<Extrema>() {
+        @Override
+        public Extrema create() {
+            return new Extrema();
+        }
+
+        @Override
+        public void add(Extrema state, double[] row, int from, int to) {
+            state.add(row, from, to);
+        }
+
+        @Override
+        public void add(Extrema state, float[] row, int from, int to) {
+            state.add(row, from, to);
+        }
+
+        @Override
+        public void merge(Extrema state, Extrema other) {
+            state.merge(other);
+        }
+    };
+
+    /**
+     * Count, min, max, sum and sum of squares, NaN values are skipped by the
+     * extrema as in {@link #Min(double, double)}.
+     */
+    private static final class Extrema {
+
+        private long n;
+        private double min = Double.NaN, max = Double.NaN;
+        private double sum, sumSq;
+
+        void add(double[] row, int from, int to) {
+            double lmin = min, lmax = max, lsum = 0, lsumSq = 0;
+            for (int i = from; i < to; i++) {
+                final double x = row[i];
+                lmin = Min(lmin, x);
+                lmax = Max(lmax, x);
+                lsum += x;
+                lsumSq += x * x;
+            }
+            update(to - from, lmin, lmax, lsum, lsumSq);
+        }
+
+        void add(float[] row, int from, int to) {
+            double lmin = min, lmax = max, lsum = 0, lsumSq = 0;
+            for (int i = from; i < to; i++) {
+                final double x = row[i];
+                lmin = Min(lmin, x);
+                lmax = Max(lmax, x);
+                lsum += x;
+                lsumSq += x * x;
+            }
+            update(to - from, lmin, lmax, lsum, lsumSq);
+        }
+
+        void merge(Extrema other) {
+            update(other.n, Min(min, other.min), Max(max, other.max), other.sum, other.sumSq);
+        }
+
+        private void update(long ln, double lmin, double lmax, double lsum, double lsumSq) {
+            n += ln;
+            min = lmin;
+            max = lmax;
+            sum += lsum;
+            sumSq += lsumSq;
+        }
+    }
+
+    /**
+     * Sequential below {@link #PARALLEL_THRESHOLD} values, otherwise the rows
+     * are cut in chunks reduced on the common fork-join pool and merged in a
+     * fixed tree, so the result does not depend on the scheduling.
+     */
+    private static <T> T reduce(final double[][] darray, final float[][] farray, final Kernel<T> kernel) {
+        final int rows = darray != null ? darray.length : farray.length;
+        long total = 0;
+        int chunks = 0;
+        for (int r = 0; r < rows; r++) {
+            final int length = darray != null ? darray[r].length : farray[r].length;
+            total += length;
+            chunks += (length + CHUNK - 1) / CHUNK;
+        }
+        if (total < PARALLEL_THRESHOLD) {
+            final T state = kernel.create();
+            for (int r = 0; r < rows; r++) {
+                if (darray != null) {
+                    kernel.add(state, darray[r], 0, darray[r].length);
+                } else {
+                    kernel.add(state, farray[r], 0, farray[r].length);
+                }
+            }
+            return state;
+        }
+        final int[] chunkRow = new int[chunks];
+        final int[] chunkStart = new int[chunks];
+        for (int r = 0, c = 0; r < rows; r++) {
+            final int length = darray != null ? darray[r].length : farray[r].length;
+            for (int start = 0; start < length; start += CHUNK, c++) {
+                chunkRow[c] = r;
+                chunkStart[c] = start;
+            }
+        }
+        return ForkJoinPool.commonPool().invoke(
+                new ReductionTask<>(darray, farray, kernel, chunkRow, chunkStart, 0, chunks));
+    }
+
+    private static class ReductionTask<T> extends RecursiveTask<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final double[][] darray;
+        private final float[][] farray;
+        private final Kernel<T> kernel;
+        private final int[] chunkRow, chunkStart;
+        private final int from, to;
+
+        ReductionTask(double[][] darray, float[][] farray, Kernel<T> kernel,
+                int[] chunkRow, int[] chunkStart, int from, int to) {
+            this.darray = darray;
+            this.farray = farray;
+            this.kernel = kernel;
+            this.chunkRow = chunkRow;
+            this.chunkStart = chunkStart;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from <= 1) {
+                final T state = kernel.create();
+                if (to > from) {
+                    final int r = chunkRow[from], start = chunkStart[from];
+                    if (darray != null) {
+                        kernel.add(state, darray[r], start, Math.min(darray[r].length, start + CHUNK));
+                    } else {
+                        kernel.add(state, farray[r], start, Math.min(farray[r].length, start + CHUNK));
+                    }
+                }
+                return state;
+            }
+            final int mid = (from + to) >>> 1;
+            final ReductionTask<T> left = new ReductionTask<>(darray, farray, kernel, chunkRow, chunkStart, from, mid);
+            left.fork();
+            final T right = new ReductionTask<>(darray, farray, kernel, chunkRow, chunkStart, mid, to).compute();
+            final T result = left.join();
+            kernel.merge(result, right);
+            return result;
+        }
     }
 
     /**
@@ -302,7 +800,7 @@ public class MathUtils {
      */
     public static double Skewness(final double[] array)
             throws MathIllegalArgumentException {
-        return new Skewness().evaluate(array);
+        return StreamingStatistics.of(array).getSkewness();
     }
 
     /**
@@ -312,7 +810,7 @@ public class MathUtils {
      */
     public static double Kurtosis(final double[] array)
             throws MathIllegalArgumentException {
-        return new Kurtosis().evaluate(array);
+        return StreamingStatistics.of(array).getKurtosis();
     }
 
     /**
@@ -322,7 +820,7 @@ public class MathUtils {
      */
     public static double StdDev(final double[] array)
             throws MathIllegalArgumentException {
-        return new StandardDeviation().evaluate(array);
+        return StreamingStatistics.of(array).getStandardDeviation();
     }
 
     /**
@@ -332,7 +830,17 @@ public class MathUtils {
      */
     public static double SumOfSquares(final double[] array)
             throws MathIllegalArgumentException {
-        return StatUtils.sumSq(array);
+        return array.length < PARALLEL_THRESHOLD ? StatUtils.sumSq(array) : extrema(new double[][]{array}).sumSq;
+    }
+
+    /**
+     *
+     * @param array the array values, rows may have different lengths
+     * @return the sum of squares of all the array values
+     */
+    public static double SumOfSquares(final double[][] array)
+            throws MathIllegalArgumentException {
+        return extrema(array).sumSq;
     }
 
     /**
@@ -345,6 +853,24 @@ public class MathUtils {
         return StatUtils.geometricMean(array);
     }
 
+    /**
+     *
+     * @param array the array values
+     * @return the array scaled to unit norm, computed in double precision
+     */
+    public static float[] Normalize(float[] array) {
+        double norm2 = SumOfSquares(array);
+        if (norm2 == 0) {
+            return array;
+        }
+        final double scale = 1 / Math.sqrt(norm2);
+        float[] result = new float[array.length];
+        for (int i = 0; i < array.length; i++) {
+            result[i] = (float) (array[i] * scale);
+        }
+        return result;
+    }
+
     public static double[] Normalize(double[] array) {
         double norm2 = SumOfSquares(array);
         if (norm2 == 0) {
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2017 CENTIS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF;
+
+import org.apache.commons.math3.exception.NullArgumentException;
+
+/**
+ * Descriptive statistics accumulated in a single traversal of the data: count,
+ * min, max, sum, sum of squares and the central moments up to the fourth
+ * (Welford / Terriberry updates). Partial states of disjoint chunks can be
+ * merged (Chan et al., Pebay), so a reduction can run in parallel. The
+ * statistics follow the bias corrected formulas of the commons-math evaluate
+ * methods, undefined ones are NaN.
+ *
+ * @author alex.vergara
+ */
+public final class StreamingStatistics {
+
+    /**
+     * Values of a bulk add are accumulated per block, whose two passes stay
+     * in cache, and merged.
+     */
+    private static final int BLOCK = 512;
+
+    private long n;
+    private double min = Double.NaN, max = Double.NaN;
+    private double sum, sumSq;
+    private double mean, m2, m3, m4;
+
+    public StreamingStatistics() {
+    }
+
+    /**
+     *
+     * @param array the values
+     * @return the statistics of the values
+     */
+    public static StreamingStatistics of(final double[] array) {
+        if (array == null) {
+            throw new NullArgumentException();
+        }
+        StreamingStatistics stats = new StreamingStatistics();
+        stats.addAll(array, 0, array.length);
+        return stats;
+    }
+
+    /**
+     *
+     * @return an independent copy of this state
+     */
+    public StreamingStatistics copy() {
+        StreamingStatistics result = new StreamingStatistics();
+        result.set(n, min, max, sum, sumSq, mean, m2, m3, m4);
+        return result;
+    }
+
+    public void clear() {
+        set(0, Double.NaN, Double.NaN, 0, 0, 0, 0, 0, 0);
+    }
+
+    private void set(long ln, double lmin, double lmax, double lsum, double lsumSq,
+            double lmean, double lm2, double lm3, double lm4) {
+        this.n = ln;
+        this.min = lmin;
+        this.max = lmax;
+        this.sum = lsum;
+        this.sumSq = lsumSq;
+        this.mean = lmean;
+        this.m2 = lm2;
+        this.m3 = lm3;
+        this.m4 = lm4;
+    }
+
+    /**
+     *
+     * @param x the new value
+     */
+    public void add(double x) {
+        final double n0 = n;
+        ++n;
+        final double delta = x - mean;
+        final double dn = delta / n;
+        final double dn2 = dn * dn;
+        final double term = delta * dn * n0;
+        mean += dn;
+        m4 += term * dn2 * (n * n - 3 * n + 3) + 6 * dn2 * m2 - 4 * dn * m3;
+        m3 += term * dn * (n - 2) - 3 * dn * m2;
+        m2 += term;
+        sum += x;
+        sumSq += x * x;
+        if (n == 1) {
+            min = x;
+            max = x;
+        } else {
+            min = MathUtils.Min(min, x);
+            max = MathUtils.Max(max, x);
+        }
+    }
+
+    /**
+     *
+     * @param array the values to add
+     */
+    public void addAll(final double[] array) {
+        addAll(array, 0, array.length);
+    }
+
+    /**
+     *
+     * @param array the values to add
+     */
+    public void addAll(final float[] array) {
+        addAll(array, 0, array.length);
+    }
+
+    /**
+     *
+     * @param array the values
+     * @param from the first index added
+     * @param to one past the last index added
+     */
+    public void addAll(final double[] array, int from, int to) {
+        for (int start = from; start < to; start += BLOCK) {
+            final int end = Math.min(to, start + BLOCK);
+            final int count = end - start;
+            double lsum = 0, lsumSq = 0;
+            double lmin = array[start], lmax = array[start];
+            for (int i = start; i < end; i++) {
+                final double x = array[i];
+                lsum += x;
+                lsumSq += x * x;
+                lmin = MathUtils.Min(lmin, x);
+                lmax = MathUtils.Max(lmax, x);
+            }
+            final double lmean = lsum / count;
+            double s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+            for (int i = start; i < end; i++) {
+                final double d = array[i] - lmean;
+                final double d2 = d * d;
+                s1 += d;
+                s2 += d2;
+                s3 += d2 * d;
+                s4 += d2 * d2;
+            }
+            // s1 corrects the rounding of the block mean, as commons-math does
+            final double c = s1 / count;
+            final double cmean = lmean + c;
+            s4 += -4 * c * s3 + 6 * c * c * s2 - 3 * count * c * c * c * c;
+            s3 += -3 * c * s2 + 2 * count * c * c * c;
+            s2 -= count * c * c;
+            merge(count, lmin, lmax, lsum, lsumSq, cmean, s2, s3, s4);
+        }
+    }
+
+    /**
+     *
+     * @param array the values, accumulated in double precision
+     * @param from the first index added
+     * @param to one past the last index added
+     */
+    public void addAll(final float[] array, int from, int to) {
+        for (int start = from; start < to; start += BLOCK) {
+            final int end = Math.min(to, start + BLOCK);
+            final int count = end - start;
+            double lsum = 0, lsumSq = 0;
+            double lmin = array[start], lmax = array[start];
+            for (int i = start; i < end; i++) {
+                final double x = array[i];
+                lsum += x;
+                lsumSq += x * x;
+                lmin = MathUtils.Min(lmin, x);
+                lmax = MathUtils.Max(lmax, x);
+            }
+            final double lmean = lsum / count;
+            double s1 = 0, s2 = 0, s3 = 0, s4 = 0;
+            for (int i = start; i < end; i++) {
+                final double d = array[i] - lmean;
+                final double d2 = d * d;
+                s1 += d;
+                s2 += d2;
+                s3 += d2 * d;
+                s4 += d2 * d2;
+            }
+            // s1 corrects the rounding of the block mean, as commons-math does
+            final double c = s1 / count;
+            final double cmean = lmean + c;
+            s4 += -4 * c * s3 + 6 * c * c * s2 - 3 * count * c * c * c * c;
+            s3 += -3 * c * s2 + 2 * count * c * c * c;
+            s2 -= count * c * c;
+            merge(count, lmin, lmax, lsum, lsumSq, cmean, s2, s3, s4);
+        }
+    }
+
+    /**
+     * Adds the values accumulated by another state, e.g. of another chunk.
+     *
+     * @param other the other state, not modified
+     */
+    public void merge(StreamingStatistics other) {
+        merge(other.n, other.min, other.max, other.sum, other.sumSq, other.mean, other.m2, other.m3, other.m4);
+    }
+
+    private void merge(long nb, double minb, double maxb, double sumb, double sumSqb,
+            double meanb, double m2b, double m3b, double m4b) {
+        if (nb == 0) {
+            return;
+        }
+        if (n == 0) {
+            set(nb, minb, maxb, sumb, sumSqb, meanb, m2b, m3b, m4b);
+            return;
+        }
+        final double na = n, nbd = nb;
+        final double nt = na + nbd;
+        final double delta = meanb - mean;
+        final double d2 = delta * delta;
+        final double m2a = m2, m3a = m3;
+        m4 += m4b + d2 * d2 * na * nbd * (na * na - na * nbd + nbd * nbd) / (nt * nt * nt)
+                + 6 * d2 * (na * na * m2b + nbd * nbd * m2a) / (nt * nt)
+                + 4 * delta * (na * m3b - nbd * m3a) / nt;
+        m3 += m3b + delta * d2 * na * nbd * (na - nbd) / (nt * nt)
+                + 3 * delta * (na * m2b - nbd * m2a) / nt;
+        m2 += m2b + d2 * na * nbd / nt;
+        mean += delta * nbd / nt;
+        n += nb;
+        sum += sumb;
+        sumSq += sumSqb;
+        min = MathUtils.Min(min, minb);
+        max = MathUtils.Max(max, maxb);
+    }
+
+    public long getN() {
+        return n;
+    }
+
+    public double getMin() {
+        return min;
+    }
+
+    public double getMax() {
+        return max;
+    }
+
+    public double getSum() {
+        return sum;
+    }
+
+    public double getSumOfSquares() {
+        return sumSq;
+    }
+
+    /**
+     *
+     * @return the mean, NaN if empty
+     */
+    public double getMean() {
+        return n == 0 ? Double.NaN : mean;
+    }
+
+    /**
+     *
+     * @return the bias corrected variance, 0 for one value and NaN if empty
+     */
+    public double getVariance() {
+        if (n == 0) {
+            return Double.NaN;
+        }
+        return n == 1 ? 0 : m2 / (n - 1);
+    }
+
+    /**
+     *
+     * @return the variance with denominator n, NaN if empty
+     */
+    public double getPopulationVariance() {
+        return n == 0 ? Double.NaN : m2 / n;
+    }
+
+    public double getStandardDeviation() {
+        return Math.sqrt(getVariance());
+    }
+
+    /**
+     *
+     * @return the bias corrected skewness, NaN for less than 3 values
+     */
+    public double getSkewness() {
+        if (n < 3) {
+            return Double.NaN;
+        }
+        final double variance = m2 / (n - 1);
+        return n / ((n - 1.0) * (n - 2.0)) * m3 / (variance * Math.sqrt(variance));
+    }
+
+    /**
+     *
+     * @return the bias corrected excess kurtosis, NaN for less than 4 values
+     */
+    public double getKurtosis() {
+        if (n < 4) {
+            return Double.NaN;
+        }
+        final double nd = n;
+        final double variance = m2 / (nd - 1);
+        final double coefficient = nd * (nd + 1) / ((nd - 1) * (nd - 2) * (nd - 3));
+        final double term = 3 * (nd - 1) * (nd - 1) / ((nd - 2) * (nd - 3));
+        return coefficient * m4 / (variance * variance) - term;
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.ObjIntConsumer;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NoDataException;
+
+/**
+ * Fits every pixel curve of an image stack in parallel, producing one map per
+ * fitted parameter plus an R^2 map. With warm start each pixel starts from
+ * the fit of its left (or upper) neighbour, and each curve of a sequence from
+ * the previous one, falling back to the default initial guess when that fit
+ * does not converge. The maps hold the largest model of the fitter, see
+ * {@link RobustFitter.MyAbstractCurveFitter#getMaxNumParams()}, pixels fitted
+ * with fewer parameters are NaN in the remaining maps.
+ *
+ * @author alex.vergara
+ */
+public class BatchFitter {
+
+    /**
+     * Builds the fitter used by each worker, e.g. {@code GaussianFitter::create}
+     * or {@code (x, y) -> PolinomialFitter.create(2, x, y)}.
+     */
+    public interface FitterFactory {
+
+        RobustFitter.MyAbstractCurveFitter create(double[] xpoints, double[] ypoints);
+    }
+
+    /**
+     * Reads the curve of one pixel into a caller supplied buffer.
+     */
+    private interface CurveReader {
+
+        void read(long pixel, double[] ypoints);
+    }
+
+    private interface CurveSource {
+
+        CurveReader newReader();
+    }
+
+    /**
+     * Per thread scratch state, one fitter and one buffer for all its pixels.
+     */
+    private static class Worker {
+
+        final CurveReader reader;
+        final double[] ypoints;
+        final RobustFitter.MyAbstractCurveFitter fitter;
+
+        Worker(FitterFactory factory, double[] xpoints, CurveReader reader) {
+            this.reader = reader;
+            this.ypoints = new double[xpoints.length];
+            this.fitter = factory.create(xpoints, ypoints);
+        }
+    }
+
+    private final FitterFactory factory;
+    private final double[] xData;
+    private int irlsIterations = 0;
+    private boolean warmStart = false;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+
+    private BatchFitter(FitterFactory factory, double[] xpoints) {
+        this.factory = factory;
+        this.xData = xpoints.clone();
+    }
+
+    /**
+     *
+     * @param factory creates the fitter used by each worker
+     * @param xpoints the x axis shared by all the curves
+     * @return a new batch fitter
+     * @throws NoDataException if there are no x values
+     */
+    public static BatchFitter create(FitterFactory factory, double[] xpoints) {
+        if (xpoints.length == 0) {
+            throw new NoDataException();
+        }
+        return new BatchFitter(factory, xpoints);
+    }
+
+    /**
+     *
+     * @param iterations number of IRLS iterations run after the initial fit, 0
+     * disables robust reweighting
+     */
+    public void setIRLSIterations(int iterations) {
+        this.irlsIterations = iterations;
+    }
+
+    /**
+     *
+     * @param warm if true each curve starts from the converged parameters of
+     * its neighbour instead of the default initial guess, for models with a
+     * fixed number of parameters
+     */
+    public void setWarmStart(boolean warm) {
+        this.warmStart = warm;
+    }
+
+    public boolean isWarmStart() {
+        return warmStart;
+    }
+
+    /**
+     *
+     * @param threads number of worker threads
+     */
+    public void setParallelism(int threads) {
+        this.parallelism = Math.max(1, threads);
+    }
+
+    /**
+     * Fits the curve of every pixel along the stack slices.
+     *
+     * @param imp the image stack, one slice per x value
+     * @return a 32 bit stack with one slice per parameter and a last R^2 slice
+     */
+    public ImagePlus fit(ImagePlus imp) {
+        final ImageStack stack = imp.getStack();
+        if (stack.getSize() != xData.length) {
+            throw new DimensionMismatchException(stack.getSize(), xData.length);
+        }
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final ImageProcessor[] planes = new ImageProcessor[stack.getSize()];
+        for (int z = 0; z < planes.length; z++) {
+            planes[z] = stack.getProcessor(z + 1);
+        }
+        final float[][] pixels = floatPixels(planes);
+        CurveSource source = pixels != null
+                ? () -> (pixel, ypoints) -> {
+                    for (int z = 0; z < pixels.length; z++) {
+                        ypoints[z] = pixels[z][(int) pixel];
+                    }
+                }
+                : () -> (pixel, ypoints) -> {
+                    for (int z = 0; z < planes.length; z++) {
+                        ypoints[z] = planes[z].getf((int) pixel);
+                    }
+                };
+
+        String[] labels = new String[1];
+        float[][] maps = run(source, width * height, width, labels);
+
+        ImageStack result = new ImageStack(width, height);
+        char pChar = 'a';
+        for (int k = 0; k < maps.length - 1; k++) {
+            result.addSlice(String.valueOf(pChar), new FloatProcessor(width, height, maps[k]));
+            pChar++;
+        }
+        result.addSlice("R^2", new FloatProcessor(width, height, maps[maps.length - 1]));
+        ImagePlus out = new ImagePlus(imp.getShortTitle() + " " + labels[0], result);
+        out.setCalibration(imp.getCalibration().copy());
+        return out;
+    }
+
+    /**
+     *
+     * @return the pixel arrays if every plane is 32 bit, read without the
+     * virtual getf call per value, else null
+     */
+    private static float[][] floatPixels(ImageProcessor[] planes) {
+        final float[][] pixels = new float[planes.length][];
+        for (int z = 0; z < planes.length; z++) {
+            if (!(planes[z] instanceof FloatProcessor)) {
+                return null;
+            }
+            pixels[z] = (float[]) planes[z].getPixels();
+        }
+        return pixels;
+    }
+
+    /**
+     * Fits the curve of every pixel along the last dimension.
+     *
+     * @param <T> the pixel type
+     * @param data the image, last dimension is the x axis
+     * @return an image with the spatial dimensions of the input and a last
+     * dimension holding one entry per parameter followed by R^2
+     * @throws NoDataException if the image has no pixels
+     */
+    public <T extends RealType<T>> Img<FloatType> fit(final RandomAccessibleInterval<T> data) {
+        final int axis = data.numDimensions() - 1;
+        if (data.dimension(axis) != xData.length) {
+            throw new DimensionMismatchException((int) data.dimension(axis), xData.length);
+        }
+        final long[] dims = new long[axis];
+        final long[] min = new long[axis];
+        long npixels = 1;
+        for (int d = 0; d < axis; d++) {
+            dims[d] = data.dimension(d);
+            min[d] = data.min(d);
+            npixels *= dims[d];
+        }
+        if (npixels == 0) {
+            // an empty image can not be built for the maps
+            throw new NoDataException();
+        }
+        final long tmin = data.min(axis);
+        CurveSource source = () -> {
+            final RandomAccess<T> ra = data.randomAccess();
+            return (pixel, ypoints) -> {
+                long index = pixel;
+                for (int d = 0; d < axis; d++) {
+                    ra.setPosition(min[d] + index % dims[d], d);
+                    index /= dims[d];
+                }
+                ra.setPosition(tmin, axis);
+                for (int t = 0; t < ypoints.length; t++) {
+                    ypoints[t] = ra.get().getRealDouble();
+                    ra.fwd(axis);
+                }
+            };
+        };
+
+        float[][] maps = run(source, (int) npixels, axis > 0 ? (int) dims[0] : 1, new String[1]);
+
+        float[] flat = new float[maps.length * maps[0].length];
+        for (int k = 0; k < maps.length; k++) {
+            System.arraycopy(maps[k], 0, flat, k * maps[k].length, maps[k].length);
+        }
+        long[] outdims = Arrays.copyOf(dims, axis + 1);
+        outdims[axis] = maps.length;
+        return ArrayImgs.floats(flat, outdims);
+    }
+
+    /**
+     * Fits a sequence of curves in order, e.g. the profile of one pixel over
+     * consecutive frames. With warm start each curve starts from the last
+     * converged fit.
+     *
+     * @param curves the observed values of each curve, sharing the x axis
+     * @return the fit of each curve, null where it did not converge
+     */
+    public FitResult[] fitSequence(final double[][] curves) {
+        for (double[] curve : curves) {
+            if (curve.length != xData.length) {
+                throw new DimensionMismatchException(curve.length, xData.length);
+            }
+        }
+        return fitSequence(curves.length, (fitter, i) -> fitter.setYPoints(curves[i]));
+    }
+
+    /**
+     * Same as {@link #fitSequence(double[][])} for single precision curves,
+     * widened directly into the fitter.
+     *
+     * @param curves the observed values of each curve, sharing the x axis
+     * @return the fit of each curve, null where it did not converge
+     */
+    public FitResult[] fitSequence(final float[][] curves) {
+        for (float[] curve : curves) {
+            if (curve.length != xData.length) {
+                throw new DimensionMismatchException(curve.length, xData.length);
+            }
+        }
+        return fitSequence(curves.length, (fitter, i) -> fitter.setYPoints(curves[i]));
+    }
+
+    /**
+     * Same as {@link #fitSequence(double[][])} over views, e.g. the columns
+     * of an interleaved matrix, each read straight into the fitter.
+     *
+     * @param curves the observed values of each curve, sharing the x axis
+     * @return the fit of each curve, null where it did not converge
+     */
+    public FitResult[] fitSequence(final DataSource... curves) {
+        for (DataSource curve : curves) {
+            if (curve.size() != xData.length) {
+                throw new DimensionMismatchException(curve.size(), xData.length);
+            }
+        }
+        return fitSequence(curves.length, (fitter, i) -> fitter.setYPoints(curves[i]));
+    }
+
+    private FitResult[] fitSequence(int count, ObjIntConsumer<RobustFitter.MyAbstractCurveFitter> loader) {
+        final FitResult[] results = new FitResult[count];
+        if (count == 0) {
+            return results;
+        }
+        final RobustFitter.MyAbstractCurveFitter fitter = factory.create(xData, new double[xData.length]);
+        double[] seed = null;
+        for (int i = 0; i < count; i++) {
+            loader.accept(fitter, i);
+            if (fitCurve(fitter, seed)) {
+                results[i] = fitter.getResult();
+                if (warmStart) {
+                    seed = results[i].getParams();
+                }
+            }
+        }
+        return results;
+    }
+
+    private float[][] run(final CurveSource source, final int npixels, final int rowLength, String[] name) {
+        // a fitter over the first curve declares the largest model, pixels
+        // fitted with fewer parameters leave the remaining maps NaN
+        Worker probe = new Worker(factory, xData, source.newReader());
+        probe.reader.read(0, probe.ypoints);
+        probe.fitter.setYPoints(probe.ypoints);
+        name[0] = probe.fitter.getName();
+        final float[][] maps = new float[probe.fitter.getMaxNumParams() + 1][npixels];
+
+        final ThreadLocal<Worker> workers
+                = ThreadLocal.withInitial(() -> new Worker(factory, xData, source.newReader()));
+        final int grain = Math.max(1, npixels / (16 * parallelism));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new PixelTask(workers, maps, rowLength, 0, npixels, grain));
+        } finally {
+            pool.shutdown();
+        }
+        return maps;
+    }
+
+    private class PixelTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ThreadLocal<Worker> workers;
+        private final float[][] maps;
+        private final int rowLength, from, to, grain;
+
+        PixelTask(ThreadLocal<Worker> workers, float[][] maps, int rowLength, int from, int to, int grain) {
+            this.workers = workers;
+            this.maps = maps;
+            this.rowLength = rowLength;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                Worker worker = workers.get();
+                final int nparams = maps.length - 1;
+                final double[] seed = new double[nparams];
+                for (int pixel = from; pixel < to; pixel++) {
+                    worker.reader.read(pixel, worker.ypoints);
+                    worker.fitter.setYPoints(worker.ypoints);
+                    boolean ok = fitCurve(worker.fitter, warmStart ? neighbour(pixel, seed) : null);
+                    double[] p = ok ? worker.fitter.getParams() : null;
+                    if (ok && p.length > nparams) {
+                        throw new DimensionMismatchException(p.length, nparams);
+                    }
+                    for (int k = 0; k < nparams; k++) {
+                        maps[k][pixel] = ok && k < p.length ? (float) p[k] : Float.NaN;
+                    }
+                    maps[nparams][pixel] = ok ? (float) worker.fitter.getRSquared() : Float.NaN;
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PixelTask(workers, maps, rowLength, from, mid, grain),
+                    new PixelTask(workers, maps, rowLength, mid, to, grain));
+        }
+
+        /**
+         * Only pixels already fitted by this task are read, so the maps are
+         * never read while another thread writes them.
+         *
+         * @return the seed holding the fit of the left neighbour, or of the
+         * upper one at the start of a row, null if there is none or it does
+         * not use every parameter
+         */
+        private double[] neighbour(int pixel, double[] seed) {
+            int source = pixel % rowLength != 0 ? pixel - 1 : pixel - rowLength;
+            if (source < from || Float.isNaN(maps[maps.length - 1][source])) {
+                return null;
+            }
+            for (int k = 0; k < seed.length; k++) {
+                if (Float.isNaN(maps[k][source])) {
+                    return null;
+                }
+                seed[k] = maps[k][source];
+            }
+            return seed;
+        }
+    }
+
+    /**
+     * Fits the curve held by the fitter from the seed, or from the default
+     * initial guess if there is no seed or its fit fails.
+     *
+     * @return false if the fit did not converge
+     */
+    private boolean fitCurve(RobustFitter.MyAbstractCurveFitter fitter, double[] seed) {
+        if (seed != null) {
+            if (fitFrom(fitter, seed)) {
+                return true;
+            }
+            // back to unit weights if IRLS ran on the failed fit
+            fitter.setYPoints(fitter.getYPoints());
+        }
+        return fitFrom(fitter, null);
+    }
+
+    private boolean fitFrom(RobustFitter.MyAbstractCurveFitter fitter, double[] seed) {
+        try {
+            if (seed == null) {
+                fitter.fit();
+            } else {
+                fitter.fit(seed);
+            }
+            if (irlsIterations > 0) {
+                fitter.runIRLS(irlsIterations);
+            }
+            return fitter.getResult().isConverged();
+        } catch (RuntimeException ex) {
+            // non convergent pixels are reported as NaN
+            return false;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Box constraints as a change of variables, as in MINUIT. The optimizer
+ * works on unconstrained internal parameters u mapped into the box by
+ * <pre>
+ * p = lo + (hi - lo) * (sin(u) + 1) / 2    both bounds
+ * p = lo - 1 + sqrt(u*u + 1)               lower bound
+ * p = hi + 1 - sqrt(u*u + 1)               upper bound
+ * p = u                                    unbounded
+ * </pre>
+ * so the model is never evaluated outside the box and no penalty is added
+ * to the objective.
+ *
+ * @author alex.vergara
+ */
+class BoxTransform {
+
+    /**
+     * Internal offset of a start lying on a bound, where the mapping has no
+     * gradient.
+     */
+    private static final double NUDGE = 0.1;
+
+    /**
+     * Slope of the mapping, relative to its slope far inside the box, below
+     * which a parameter is taken as sitting on its bound.
+     */
+    private static final double EDGE = 1e-4;
+
+    private final double[] lower, upper;
+
+    BoxTransform(double[] lower, double[] upper) {
+        this.lower = lower;
+        this.upper = upper;
+    }
+
+    /**
+     *
+     * @param external the parameters, clamped into the box first
+     * @return the internal parameters
+     */
+    double[] toInternal(double[] external) {
+        final double[] u = new double[external.length];
+        for (int i = 0; i < u.length; i++) {
+            final double lo = lower[i], hi = upper[i];
+            final double p = Math.min(Math.max(external[i], lo), hi);
+            if (lo == hi) {
+                // fixed parameter
+                u[i] = 0;
+            } else if (lo > Double.NEGATIVE_INFINITY && hi < Double.POSITIVE_INFINITY) {
+                u[i] = Math.asin(2 * (p - lo) / (hi - lo) - 1);
+                if (Math.abs(u[i]) > Math.PI / 2 - NUDGE) {
+                    u[i] = Math.copySign(Math.PI / 2 - NUDGE, u[i]);
+                }
+            } else if (lo > Double.NEGATIVE_INFINITY) {
+                final double s = p - lo + 1;
+                u[i] = Math.max(Math.sqrt(s * s - 1), NUDGE);
+            } else if (hi < Double.POSITIVE_INFINITY) {
+                final double s = hi - p + 1;
+                u[i] = Math.max(Math.sqrt(s * s - 1), NUDGE);
+            } else {
+                u[i] = p;
+            }
+        }
+        return u;
+    }
+
+    /**
+     *
+     * @param internal the internal parameters
+     * @return the parameters
+     */
+    double[] toExternal(double[] internal) {
+        final double[] p = new double[internal.length];
+        for (int i = 0; i < p.length; i++) {
+            final double lo = lower[i], hi = upper[i], u = internal[i];
+            if (lo > Double.NEGATIVE_INFINITY && hi < Double.POSITIVE_INFINITY) {
+                p[i] = lo + 0.5 * (hi - lo) * (Math.sin(u) + 1);
+            } else if (lo > Double.NEGATIVE_INFINITY) {
+                p[i] = lo - 1 + Math.sqrt(u * u + 1);
+            } else if (hi < Double.POSITIVE_INFINITY) {
+                p[i] = hi + 1 - Math.sqrt(u * u + 1);
+            } else {
+                p[i] = u;
+            }
+        }
+        return p;
+    }
+
+    /**
+     *
+     * @param internal the internal parameters
+     * @return dp/du for each parameter
+     */
+    double[] derivatives(double[] internal) {
+        final double[] d = new double[internal.length];
+        for (int i = 0; i < d.length; i++) {
+            final double lo = lower[i], hi = upper[i], u = internal[i];
+            if (lo > Double.NEGATIVE_INFINITY && hi < Double.POSITIVE_INFINITY) {
+                d[i] = 0.5 * (hi - lo) * Math.cos(u);
+            } else if (lo > Double.NEGATIVE_INFINITY) {
+                d[i] = u / Math.sqrt(u * u + 1);
+            } else if (hi < Double.POSITIVE_INFINITY) {
+                d[i] = -u / Math.sqrt(u * u + 1);
+            } else {
+                d[i] = 1;
+            }
+        }
+        return d;
+    }
+
+    /**
+     *
+     * @param internal the internal parameters
+     * @return true for the parameters sitting on a bound, or fixed, where
+     * the mapping has no slope
+     */
+    boolean[] atBound(double[] internal) {
+        final boolean[] on = new boolean[internal.length];
+        for (int i = 0; i < on.length; i++) {
+            final double lo = lower[i], hi = upper[i], u = internal[i];
+            if (lo == hi) {
+                on[i] = true;
+            } else if (lo > Double.NEGATIVE_INFINITY && hi < Double.POSITIVE_INFINITY) {
+                on[i] = Math.abs(Math.cos(u)) < EDGE;
+            } else if (lo > Double.NEGATIVE_INFINITY || hi < Double.POSITIVE_INFINITY) {
+                on[i] = Math.abs(u) < EDGE;
+            }
+        }
+        return on;
+    }
+
+    /**
+     * Covariance of the parameters from the one of the internal parameters,
+     * to first order. The first order mapping breaks down for a parameter on
+     * its bound, its row and column are NaN so its error is undetermined.
+     *
+     * @param internal the internal solution
+     * @param covariance the internal covariance, overwritten
+     * @return the covariance
+     */
+    double[][] toExternal(double[] internal, double[][] covariance) {
+        final double[] d = derivatives(internal);
+        for (int i = 0; i < d.length; i++) {
+            for (int j = 0; j < d.length; j++) {
+                covariance[i][j] *= d[i] * d[j];
+            }
+        }
+        final boolean[] on = atBound(internal);
+        for (int i = 0; i < on.length; i++) {
+            if (on[i]) {
+                undetermined(covariance, i);
+            }
+        }
+        return covariance;
+    }
+
+    /**
+     * Marks the error of a parameter as undetermined.
+     *
+     * @param covariance the covariance, overwritten
+     * @param i the parameter
+     */
+    static void undetermined(double[][] covariance, int i) {
+        for (int j = 0; j < covariance.length; j++) {
+            covariance[i][j] = Double.NaN;
+            covariance[j][i] = Double.NaN;
+        }
+    }
+
+    /**
+     *
+     * @param model model of the parameters
+     * @return the same model of the internal parameters
+     */
+    MultivariateJacobianFunction wrap(final MultivariateJacobianFunction model) {
+        return point -> {
+            final double[] u = point.toArray();
+            final Pair<RealVector, RealMatrix> value = model.value(new ArrayRealVector(toExternal(u), false));
+            final double[] d = derivatives(u);
+            final RealMatrix jacobian = value.getSecond();
+            if (jacobian instanceof RobustFitter.JacobianMatrix) {
+                final double[] data = ((RobustFitter.JacobianMatrix) jacobian).data;
+                for (int k = 0; k < data.length; k += d.length) {
+                    for (int j = 0; j < d.length; j++) {
+                        data[k + j] *= d[j];
+                    }
+                }
+            } else {
+                for (int i = 0; i < jacobian.getRowDimension(); i++) {
+                    for (int j = 0; j < d.length; j++) {
+                        jacobian.multiplyEntry(i, j, d[j]);
+                    }
+                }
+            }
+            return value;
+        };
+    }
+}
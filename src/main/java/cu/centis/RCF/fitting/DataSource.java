@@ -0,0 +1,303 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.nio.DoubleBuffer;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.Views;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+
+/**
+ * Read only view of a sequence of values kept by the caller: a whole array,
+ * a strided slice of an array (e.g. a column of an interleaved matrix), a
+ * DoubleBuffer or a one dimensional imglib2 interval. The fitters created
+ * from a view take ownership of a whole double array and use it in place,
+ * any other view is read once into their own arrays, without intermediate
+ * copies or per point objects.
+ *
+ * @author alex.vergara
+ */
+public abstract class DataSource {
+
+    /**
+     *
+     * @return the number of values
+     */
+    public abstract int size();
+
+    /**
+     *
+     * @param i the index, between 0 and size() - 1
+     * @return the value at the index
+     */
+    public abstract double get(int i);
+
+    /**
+     *
+     * @param dest receives the values, at least size() long
+     */
+    public void copyTo(double[] dest) {
+        final int n = size();
+        for (int i = 0; i < n; i++) {
+            dest[i] = get(i);
+        }
+    }
+
+    /**
+     *
+     * @return the array holding exactly these values, or null if the view is
+     * not a whole double array
+     */
+    double[] array() {
+        return null;
+    }
+
+    /**
+     *
+     * @return the backing array if the view is a whole double array, else a
+     * new one with the values, for the fitter factories that take ownership
+     */
+    double[] values() {
+        final double[] backing = array();
+        return backing != null ? backing : toArray();
+    }
+
+    /**
+     *
+     * @return a new array with the values
+     */
+    public double[] toArray() {
+        final double[] result = new double[size()];
+        copyTo(result);
+        return result;
+    }
+
+    /**
+     *
+     * @param array the values, not copied
+     * @return a view of the whole array
+     */
+    public static DataSource of(double[] array) {
+        return new DoubleSlice(array, 0, 1, array.length);
+    }
+
+    /**
+     *
+     * @param data the array, not copied
+     * @param offset index of the first value
+     * @param stride distance between consecutive values, e.g. the number of
+     * columns to read a column of a row major matrix
+     * @param length the number of values
+     * @return a view of data[offset + i * stride]
+     */
+    public static DataSource of(double[] data, int offset, int stride, int length) {
+        checkSlice(data.length, offset, stride, length);
+        return new DoubleSlice(data, offset, stride, length);
+    }
+
+    /**
+     *
+     * @param data the array, not copied, values are widened when read
+     * @param offset index of the first value
+     * @param stride distance between consecutive values
+     * @param length the number of values
+     * @return a view of data[offset + i * stride]
+     */
+    public static DataSource of(float[] data, int offset, int stride, int length) {
+        checkSlice(data.length, offset, stride, length);
+        return new FloatSlice(data, offset, stride, length);
+    }
+
+    /**
+     *
+     * @param buffer the values from its position to its limit, read with
+     * absolute gets so the buffer state is not changed
+     * @return a view of the buffer
+     */
+    public static DataSource of(DoubleBuffer buffer) {
+        return new BufferSource(buffer.duplicate());
+    }
+
+    /**
+     *
+     * @param <T> the pixel type
+     * @param line a one dimensional interval
+     * @return a view of the interval
+     */
+    public static <T extends RealType<T>> DataSource of(RandomAccessibleInterval<T> line) {
+        if (line.numDimensions() != 1) {
+            throw new DimensionMismatchException(line.numDimensions(), 1);
+        }
+        return new IntervalSource<>(line);
+    }
+
+    static void checkSize(DataSource xpoints, DataSource ypoints) {
+        if (xpoints.size() != ypoints.size()) {
+            throw new DimensionMismatchException(ypoints.size(), xpoints.size());
+        }
+    }
+
+    private static void checkSlice(int capacity, int offset, int stride, int length) {
+        if (stride <= 0) {
+            throw new NotStrictlyPositiveException(stride);
+        }
+        if (offset < 0 || length < 0 || (length > 0 && offset + (long) (length - 1) * stride >= capacity)) {
+            throw new OutOfRangeException(offset + (long) Math.max(0, length - 1) * stride, 0, capacity - 1);
+        }
+    }
+
+    private static final class DoubleSlice extends DataSource {
+
+        private final double[] data;
+        private final int offset, stride, length;
+
+        DoubleSlice(double[] data, int offset, int stride, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+            this.length = length;
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+
+        @Override
+        public double get(int i) {
+            return data[offset + i * stride];
+        }
+
+        @Override
+        public void copyTo(double[] dest) {
+            if (stride == 1) {
+                System.arraycopy(data, offset, dest, 0, length);
+                return;
+            }
+            for (int i = 0, k = offset; i < length; i++, k += stride) {
+                dest[i] = data[k];
+            }
+        }
+
+        @Override
+        double[] array() {
+            return offset == 0 && stride == 1 && length == data.length ? data : null;
+        }
+    }
+
+    private static final class FloatSlice extends DataSource {
+
+        private final float[] data;
+        private final int offset, stride, length;
+
+        FloatSlice(float[] data, int offset, int stride, int length) {
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+            this.length = length;
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+
+        @Override
+        public double get(int i) {
+            return data[offset + i * stride];
+        }
+
+        @Override
+        public void copyTo(double[] dest) {
+            for (int i = 0, k = offset; i < length; i++, k += stride) {
+                dest[i] = data[k];
+            }
+        }
+    }
+
+    private static final class BufferSource extends DataSource {
+
+        private final DoubleBuffer buffer;
+        private final int position, length;
+
+        BufferSource(DoubleBuffer buffer) {
+            this.buffer = buffer;
+            this.position = buffer.position();
+            this.length = buffer.remaining();
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+
+        @Override
+        public double get(int i) {
+            return buffer.get(position + i);
+        }
+
+        @Override
+        double[] array() {
+            if (buffer.hasArray() && buffer.arrayOffset() + position == 0
+                    && buffer.array().length == length) {
+                return buffer.array();
+            }
+            return null;
+        }
+    }
+
+    private static final class IntervalSource<T extends RealType<T>> extends DataSource {
+
+        private final RandomAccessibleInterval<T> line;
+        private final RandomAccess<T> access;
+        private final long min;
+        private final int length;
+
+        IntervalSource(RandomAccessibleInterval<T> line) {
+            this.line = line;
+            this.access = line.randomAccess();
+            this.min = line.min(0);
+            this.length = (int) line.dimension(0);
+        }
+
+        @Override
+        public int size() {
+            return length;
+        }
+
+        /**
+         * Not thread safe, the view keeps a single random access.
+         */
+        @Override
+        public double get(int i) {
+            access.setPosition(min + i, 0);
+            return access.get().getRealDouble();
+        }
+
+        @Override
+        public void copyTo(double[] dest) {
+            final Cursor<T> cursor = Views.flatIterable(line).cursor();
+            for (int i = 0; i < length; i++) {
+                dest[i] = cursor.next().getRealDouble();
+            }
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.fitting.leastsquares.EvaluationRmsChecker;
+import org.apache.commons.math3.fitting.leastsquares.GaussNewtonOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer;
+
+/**
+ * Immutable settings of the iterative solver used by the fitters: the
+ * algorithm, its tolerances and the budgets after which a fit gives up and
+ * returns a {@link FitResult} that is not {@link FitResult#isConverged()
+ * converged}. Each {@code with} method returns a modified copy.
+ *
+ * @author alex.vergara
+ */
+public final class FitConfiguration {
+
+    public enum Solver {
+        /**
+         * Robust far from the solution, the default.
+         */
+        LEVENBERG_MARQUARDT,
+        /**
+         * Cheaper per iteration, for good starting points only.
+         */
+        GAUSS_NEWTON_QR,
+        /**
+         * Fastest, but squares the condition number of the Jacobian.
+         */
+        GAUSS_NEWTON_CHOLESKY
+    }
+
+    /**
+     * Levenberg-Marquardt with the commons-math tolerances and no limits.
+     */
+    public static final FitConfiguration DEFAULT = new FitConfiguration(Solver.LEVENBERG_MARQUARDT,
+            1e-10, 1e-10, 1e-10, Integer.MAX_VALUE, Integer.MAX_VALUE, 0);
+
+    private final Solver solver;
+    private final double costTolerance, parameterTolerance, orthoTolerance;
+    private final int maxEvaluations, maxIterations;
+    private final long timeoutNanos;
+    private final LeastSquaresOptimizer optimizer;
+
+    private FitConfiguration(Solver solver, double costTolerance, double parameterTolerance,
+            double orthoTolerance, int maxEvaluations, int maxIterations, long timeoutNanos) {
+        this.solver = solver;
+        this.costTolerance = costTolerance;
+        this.parameterTolerance = parameterTolerance;
+        this.orthoTolerance = orthoTolerance;
+        this.maxEvaluations = maxEvaluations;
+        this.maxIterations = maxIterations;
+        this.timeoutNanos = timeoutNanos;
+        switch (solver) {
+            case GAUSS_NEWTON_QR:
+                this.optimizer = new GaussNewtonOptimizer(GaussNewtonOptimizer.Decomposition.QR);
+                break;
+            case GAUSS_NEWTON_CHOLESKY:
+                this.optimizer = new GaussNewtonOptimizer(GaussNewtonOptimizer.Decomposition.CHOLESKY);
+                break;
+            default:
+                this.optimizer = new LevenbergMarquardtOptimizer().
+                        withCostRelativeTolerance(costTolerance).
+                        withParameterRelativeTolerance(parameterTolerance).
+                        withOrthoTolerance(orthoTolerance);
+        }
+    }
+
+    public FitConfiguration withSolver(Solver lsolver) {
+        return new FitConfiguration(lsolver, costTolerance, parameterTolerance, orthoTolerance,
+                maxEvaluations, maxIterations, timeoutNanos);
+    }
+
+    /**
+     *
+     * @param cost relative reduction of the sum of squares below which the
+     * fit has converged, Gauss-Newton uses it on the RMS of the residuals
+     * @param parameter relative change of the parameters below which the fit
+     * has converged
+     * @return the modified configuration
+     */
+    public FitConfiguration withTolerances(double cost, double parameter) {
+        return new FitConfiguration(solver, cost, parameter, orthoTolerance,
+                maxEvaluations, maxIterations, timeoutNanos);
+    }
+
+    /**
+     *
+     * @param ortho cosine between the residuals and the columns of the
+     * Jacobian below which Levenberg-Marquardt has converged
+     * @return the modified configuration
+     */
+    public FitConfiguration withOrthoTolerance(double ortho) {
+        return new FitConfiguration(solver, costTolerance, parameterTolerance, ortho,
+                maxEvaluations, maxIterations, timeoutNanos);
+    }
+
+    public FitConfiguration withMaxEvaluations(int evaluations) {
+        if (evaluations <= 0) {
+            throw new NotStrictlyPositiveException(evaluations);
+        }
+        return new FitConfiguration(solver, costTolerance, parameterTolerance, orthoTolerance,
+                evaluations, maxIterations, timeoutNanos);
+    }
+
+    public FitConfiguration withMaxIterations(int iterations) {
+        if (iterations <= 0) {
+            throw new NotStrictlyPositiveException(iterations);
+        }
+        return new FitConfiguration(solver, costTolerance, parameterTolerance, orthoTolerance,
+                maxEvaluations, iterations, timeoutNanos);
+    }
+
+    /**
+     * Wall clock limit of a single fit, checked at each model evaluation.
+     *
+     * @param timeout the time allowed, 0 for no limit
+     * @param unit its unit
+     * @return the modified configuration
+     */
+    public FitConfiguration withTimeout(long timeout, TimeUnit unit) {
+        return new FitConfiguration(solver, costTolerance, parameterTolerance, orthoTolerance,
+                maxEvaluations, maxIterations, Math.max(0, unit.toNanos(timeout)));
+    }
+
+    public Solver getSolver() {
+        return solver;
+    }
+
+    public double getCostTolerance() {
+        return costTolerance;
+    }
+
+    public double getParameterTolerance() {
+        return parameterTolerance;
+    }
+
+    public double getOrthoTolerance() {
+        return orthoTolerance;
+    }
+
+    public int getMaxEvaluations() {
+        return maxEvaluations;
+    }
+
+    public int getMaxIterations() {
+        return maxIterations;
+    }
+
+    /**
+     *
+     * @return the wall clock limit of a fit in nanoseconds, 0 for no limit
+     */
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    LeastSquaresOptimizer getOptimizer() {
+        return optimizer;
+    }
+
+    /**
+     * Applies the budgets, and the convergence test Gauss-Newton needs, to a
+     * problem under construction.
+     *
+     * @param builder the problem builder
+     * @return the same builder
+     */
+    LeastSquaresBuilder configure(LeastSquaresBuilder builder) {
+        builder.maxEvaluations(maxEvaluations).
+                maxIterations(maxIterations);
+        if (solver != Solver.LEVENBERG_MARQUARDT) {
+            final EvaluationRmsChecker rms = new EvaluationRmsChecker(costTolerance);
+            builder.checker((iteration, previous, current) -> rms.converged(iteration, previous, current)
+                    || current.getPoint().getDistance(previous.getPoint())
+                    <= parameterTolerance * current.getPoint().getNorm());
+        }
+        return builder;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import org.apache.commons.math3.distribution.TDistribution;
+import org.apache.commons.math3.exception.OutOfRangeException;
+
+/**
+ * Immutable outcome of one fit, safe to share between threads.
+ *
+ * @author alex.vergara
+ */
+public final class FitResult {
+
+    private final double[] params;
+    private final double[][] covariance;
+    private final int numPoints;
+    private final double sumResidualsSqr, weightedSumResidualsSqr, rSquared;
+    private final int iterations, evaluations;
+    private final boolean converged;
+
+    FitResult(double[] params, double[][] covariance, int numPoints,
+            double sumResidualsSqr, double weightedSumResidualsSqr, double rSquared,
+            int iterations, int evaluations, boolean converged) {
+        this.params = params.clone();
+        this.covariance = covariance == null ? null : copy(covariance);
+        this.numPoints = numPoints;
+        this.sumResidualsSqr = sumResidualsSqr;
+        this.weightedSumResidualsSqr = weightedSumResidualsSqr;
+        this.rSquared = rSquared;
+        this.iterations = iterations;
+        this.evaluations = evaluations;
+        this.converged = converged;
+    }
+
+    private static double[][] copy(double[][] matrix) {
+        double[][] result = new double[matrix.length][];
+        for (int i = 0; i < matrix.length; i++) {
+            result[i] = matrix[i].clone();
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return a copy of the fitted parameters
+     */
+    public double[] getParams() {
+        return params.clone();
+    }
+
+    /**
+     *
+     * @param i the parameter index
+     * @return the fitted value of the parameter
+     */
+    public double getParam(int i) {
+        return params[i];
+    }
+
+    public int getNumParams() {
+        return params.length;
+    }
+
+    /**
+     *
+     * @return a copy of the inverse of the weighted normal matrix (J'WJ)^-1
+     * at the solution, or null if it is singular
+     */
+    public double[][] getCovariance() {
+        return covariance == null ? null : copy(covariance);
+    }
+
+    /**
+     * Covariance scaled by the reduced chi square, the usual estimate when
+     * the weights are only relative, e.g. unit or IRLS weights.
+     *
+     * @return a copy of the scaled covariance, or null if it is singular
+     */
+    public double[][] getScaledCovariance() {
+        if (covariance == null) {
+            return null;
+        }
+        final double scale = getReducedChiSquare();
+        final double[][] result = copy(covariance);
+        for (double[] row : result) {
+            for (int j = 0; j < row.length; j++) {
+                row[j] *= scale;
+            }
+        }
+        return result;
+    }
+
+    /**
+     *
+     * @return the standard error of each parameter from the scaled
+     * covariance, NaN if it is singular or there are no degrees of freedom,
+     * and for a parameter on a bound
+     */
+    public double[] getStandardErrors() {
+        final double[] errors = new double[params.length];
+        final double scale = getReducedChiSquare();
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = covariance == null ? Double.NaN : Math.sqrt(covariance[i][i] * scale);
+        }
+        return errors;
+    }
+
+    /**
+     * Student t confidence intervals of the parameters from their standard
+     * errors, with n - p degrees of freedom.
+     *
+     * @param level the confidence level, e.g. 0.95
+     * @return {lower, upper}, one bound per parameter
+     */
+    public double[][] getConfidenceIntervals(double level) {
+        if (!(level > 0 && level < 1)) {
+            throw new OutOfRangeException(level, 0, 1);
+        }
+        final double[] errors = getStandardErrors();
+        final int dof = getDegreesOfFreedom();
+        final double t = dof > 0
+                ? new TDistribution(null, dof).inverseCumulativeProbability(0.5 + 0.5 * level)
+                : Double.NaN;
+        final double[][] intervals = new double[2][params.length];
+        for (int i = 0; i < params.length; i++) {
+            intervals[0][i] = params[i] - t * errors[i];
+            intervals[1][i] = params[i] + t * errors[i];
+        }
+        return intervals;
+    }
+
+    public int getNumPoints() {
+        return numPoints;
+    }
+
+    /**
+     *
+     * @return n - p
+     */
+    public int getDegreesOfFreedom() {
+        return numPoints - params.length;
+    }
+
+    /**
+     *
+     * @return the weighted sum of squared residuals over the degrees of
+     * freedom, NaN without degrees of freedom
+     */
+    public double getReducedChiSquare() {
+        final int dof = getDegreesOfFreedom();
+        return dof > 0 ? weightedSumResidualsSqr / dof : Double.NaN;
+    }
+
+    /**
+     *
+     * @return the sum of squared (unweighted) residuals
+     */
+    public double getSumOfSquaredResiduals() {
+        return sumResidualsSqr;
+    }
+
+    /**
+     *
+     * @return the weighted sum of squared residuals (chi square)
+     */
+    public double getWeightedSumOfSquaredResiduals() {
+        return weightedSumResidualsSqr;
+    }
+
+    public double getRSquared() {
+        return rSquared;
+    }
+
+    /**
+     *
+     * @return the number of optimizer iterations, 1 for direct solvers, the
+     * number of evaluations if the fit did not converge
+     */
+    public int getIterations() {
+        return iterations;
+    }
+
+    /**
+     *
+     * @return the number of model evaluations
+     */
+    public int getEvaluations() {
+        return evaluations;
+    }
+
+    /**
+     *
+     * @return false if the solver stopped on a budget, the deadline or a
+     * numerical failure, the parameters are then the best ones evaluated
+     */
+    public boolean isConverged() {
+        return converged;
+    }
+}
@@ -15,8 +15,12 @@
  */
 package cu.centis.RCF.fitting;
 
+import cu.centis.RCF.fitting.PolinomialFit.PolinomialFitter;
+import ij.util.Tools;
+import org.apache.commons.math3.exception.MathIllegalStateException;
 import org.apache.commons.math3.exception.NoDataException;
-import cu.centis.RCF.MathUtils;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
+import org.apache.commons.math3.optim.ConvergenceChecker;
 import static cu.centis.RCF.fitting.RobustFitter.FWHM;
 import static cu.centis.RCF.fitting.RobustFitter.FWTM;
 
@@ -26,7 +30,8 @@ import static cu.centis.RCF.fitting.RobustFitter.FWTM;
  */
 public class GaussianFit {
 
-    static class FGauss extends RobustFitter.MyParametricUnivariateFunction {
+    static class FGauss extends RobustFitter.MyParametricUnivariateFunction
+            implements RobustFitter.SeparableFunction {
 
         @Override
         public double value(double t, double... parameters) {
@@ -43,6 +48,13 @@ public class GaussianFit {
         // partial derivatives of the above function, with one element for each parameter.
         @Override
         public double[] gradient(double t, double... parameters) throws NoDataException {
+            double[] result = new double[4];
+            gradient(t, parameters, result);
+            return result;
+        }
+
+        @Override
+        public void gradient(double t, double[] parameters, double[] gradient) {
             final double a = parameters[0];
             final double b = parameters[1];
             final double c = parameters[2];
@@ -52,12 +64,94 @@ public class GaussianFit {
             final double i2d2 = 1 / (2 * d * d);
             final double gauss = Math.exp(-diff * diff * i2d2);
 
-            final double a1 = 1 - gauss;
-            final double b1 = gauss;
-            final double c1 = (b - a) * gauss * (diff / (d * d));
-            final double d1 = (b - a) * gauss * (diff * diff / (d * d * d));
+            gradient[0] = 1 - gauss;
+            gradient[1] = gauss;
+            gradient[2] = (b - a) * gauss * (diff / (d * d));
+            gradient[3] = (b - a) * gauss * (diff * diff / (d * d * d));
+        }
+
+        @Override
+        public void valueAll(double[] x, double[] parameters, double[] values) {
+            final double a = parameters[0];
+            final double ba = parameters[1] - a;
+            final double c = parameters[2];
+            final double d = parameters[3];
+            final double i2d2 = 1 / (2 * d * d);
+            for (int i = 0; i < x.length; i++) {
+                final double diff = x[i] - c;
+                values[i] = a + ba * Math.exp(-diff * diff * i2d2);
+            }
+        }
+
+        @Override
+        public void gradientAll(double[] x, double[] parameters, double[] jacobian) {
+            final double ba = parameters[1] - parameters[0];
+            final double c = parameters[2];
+            final double d = parameters[3];
+            final double i2d2 = 1 / (2 * d * d);
+            final double id2 = 1 / (d * d);
+            final double id3 = id2 / d;
+            for (int i = 0, k = 0; i < x.length; i++, k += 4) {
+                final double diff = x[i] - c;
+                final double gauss = Math.exp(-diff * diff * i2d2);
+                jacobian[k] = 1 - gauss;
+                jacobian[k + 1] = gauss;
+                jacobian[k + 2] = ba * gauss * diff * id2;
+                jacobian[k + 3] = ba * gauss * diff * diff * id3;
+            }
+        }
+
+        // separable form a*(1-g) + b*g, g = exp(-(x-c)^2/(2d^2))
+        @Override
+        public int getNumLinear() {
+            return 2;
+        }
+
+        @Override
+        public int getNumNonlinear() {
+            return 2;
+        }
+
+        @Override
+        public void split(double[] parameters, double[] linear, double[] nonlinear) {
+            linear[0] = parameters[0];
+            linear[1] = parameters[1];
+            nonlinear[0] = parameters[2];
+            nonlinear[1] = parameters[3];
+        }
 
-            return new double[]{a1, b1, c1, d1};
+        @Override
+        public double[] join(double[] linear, double[] nonlinear) {
+            return new double[]{linear[0], linear[1], nonlinear[0], nonlinear[1]};
+        }
+
+        @Override
+        public void basis(double[] x, double[] nonlinear, double[] phi) {
+            final double c = nonlinear[0];
+            final double d = nonlinear[1];
+            final double i2d2 = 1 / (2 * d * d);
+            for (int i = 0, k = 0; i < x.length; i++, k += 2) {
+                final double diff = x[i] - c;
+                final double gauss = Math.exp(-diff * diff * i2d2);
+                phi[k] = 1 - gauss;
+                phi[k + 1] = gauss;
+            }
+        }
+
+        @Override
+        public void basisGradient(double[] x, double[] nonlinear, int j, double[] dphi) {
+            final double c = nonlinear[0];
+            final double d = nonlinear[1];
+            final double i2d2 = 1 / (2 * d * d);
+            final double id2 = 1 / (d * d);
+            final double id3 = id2 / d;
+            for (int i = 0, k = 0; i < x.length; i++, k += 2) {
+                final double diff = x[i] - c;
+                final double gauss = Math.exp(-diff * diff * i2d2);
+                final double dg = j == 0 ? gauss * diff * id2 : gauss * diff * diff * id3;
+                dphi[k] = -dg;
+                dphi[k + 1] = dg;
+            }
         }
 
         @Override
@@ -66,11 +160,35 @@ public class GaussianFit {
         }
     }
 
+    /**
+     * Half the mean sampling step, narrower peaks are not resolved by the
+     * data. A lower bound for the widths, see
+     * {@link RobustFitter.MyAbstractCurveFitter#setBounds(double[], double[])}.
+     *
+     * @param xpoints the abscissas, in any order
+     * @return the smallest width resolved by the data
+     */
+    public static double minWidth(double[] xpoints) {
+        if (xpoints.length < 2) {
+            return 1e-12;
+        }
+        double sum = 0;
+        for (int i = 1; i < xpoints.length; i++) {
+            sum += Math.abs(xpoints[i] - xpoints[i - 1]);
+        }
+        return Math.max(0.5 * sum / (xpoints.length - 1), 1e-12);
+    }
+
     public static class GaussianFitter extends RobustFitter.MyAbstractCurveFitter {
 
+        private final PolinomialFitter parabola = PolinomialFitter.create(2, new double[0], new double[0]);
+        private boolean linearized = false;
+        private double threshold = 0.1;
+        private int refinement = Integer.MAX_VALUE;
+
         private GaussianFitter(double[] xpoints, double[] ypoints) {
-            this.xData = xpoints.clone();
-            this.yData = ypoints.clone();
+            this.xData = xpoints;
+            this.yData = ypoints;
             this.weights = new double[yData.length];
             for (int i = 0; i < yData.length; i++) {
                 this.weights[i] = 1;
@@ -79,14 +197,147 @@ public class GaussianFit {
         }
 
         public static GaussianFitter create(double[] xpoints, double[] ypoints) {
-            return new GaussianFitter(xpoints, ypoints);
+            return new GaussianFitter(xpoints.clone(), ypoints.clone());
+        }
+
+        /**
+         * Widens the single precision data once into the arrays of the fitter.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static GaussianFitter create(float[] xpoints, float[] ypoints) {
+            return new GaussianFitter(Tools.toDouble(xpoints), Tools.toDouble(ypoints));
+        }
+
+        /**
+         * Fitter over views of the caller data. The fitter takes ownership of
+         * a whole double array, which is used in place without a copy and must
+         * not be changed by the caller while the fitter is in use, any other
+         * view is read once.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static GaussianFitter create(DataSource xpoints, DataSource ypoints) {
+            DataSource.checkSize(xpoints, ypoints);
+            return new GaussianFitter(xpoints.values(), ypoints.values());
         }
 
         @Override
-        public synchronized void fit() {
-            // Using default initialization
-            double[] initialGuess = new double[]{0.0, MathUtils.Max(yData), MathUtils.Mean(xData), 1.0};
-            fit(initialGuess);
+        protected double[] getInitialGuess(double[] xpoints, double[] ypoints) {
+            return Initializers.gaussian(xpoints, ypoints);
+        }
+
+        /**
+         *
+         * @param lLinearized if true the fit starts from the closed form
+         * solution of the parabola fitted to log(y - a), see
+         * {@link #setRefinementIterations}
+         */
+        public void setLinearized(boolean lLinearized) {
+            this.linearized = lLinearized;
+        }
+
+        public boolean isLinearized() {
+            return linearized;
+        }
+
+        /**
+         *
+         * @param fraction only the points higher than this fraction of the
+         * peak height over the baseline enter the linearized fit, default 0.1
+         */
+        public void setLinearizedThreshold(double fraction) {
+            this.threshold = fraction;
+        }
+
+        /**
+         *
+         * @param iterations maximum number of LM iterations after the
+         * linearized fit, 0 keeps the closed form solution (without
+         * covariance), unlimited by default
+         */
+        public void setRefinementIterations(int iterations) {
+            this.refinement = iterations;
+        }
+
+        @Override
+        public FitResult fit(double[] xpoints, double[] ypoints, double[] lweights, double[] initialGuess) {
+            if (!linearized) {
+                return super.fit(xpoints, ypoints, lweights, initialGuess);
+            }
+            final double[] start = linearizedFit(xpoints, ypoints, lweights, initialGuess[0]);
+            if (start == null) {
+                return super.fit(xpoints, ypoints, lweights, initialGuess);
+            }
+            if (refinement <= 0) {
+                return createResult(xpoints, ypoints, lweights, start, null, 1, 1);
+            }
+            if (refinement == Integer.MAX_VALUE) {
+                return super.fit(xpoints, ypoints, lweights, start);
+            }
+            final ConvergenceChecker<LeastSquaresProblem.Evaluation> checker
+                    = (iteration, previous, current) -> iteration >= refinement;
+            return optimize(xpoints, ypoints, lweights, start, checker);
+        }
+
+        /**
+         * Caruana's method: log(y - a) = p0 + p1*u + p2*u^2 with u = x - x0,
+         * fitted with weights w*(y - a)^2 to compensate the noise
+         * amplification of the logarithm (Guo).
+         *
+         * @return {a, b, c, d} or null if the points do not form a peak
+         */
+        private double[] linearizedFit(double[] xpoints, double[] ypoints, double[] lweights, double baseline) {
+            int peak = 0;
+            for (int i = 1; i < ypoints.length; i++) {
+                if (ypoints[i] > ypoints[peak]) {
+                    peak = i;
+                }
+            }
+            final double level = threshold * (ypoints[peak] - baseline);
+            int count = 0;
+            for (int i = 0; i < ypoints.length; i++) {
+                if (ypoints[i] - baseline > level) {
+                    ++count;
+                }
+            }
+            if (count < 3) {
+                return null;
+            }
+            // centered on the maximum to keep the normal equations well conditioned
+            final double x0 = xpoints[peak];
+            final double[] u = new double[count];
+            final double[] logy = new double[count];
+            final double[] w = new double[count];
+            for (int i = 0, k = 0; i < ypoints.length; i++) {
+                final double h = ypoints[i] - baseline;
+                if (h > level) {
+                    u[k] = xpoints[i] - x0;
+                    logy[k] = Math.log(h);
+                    w[k] = lweights[i] * h * h;
+                    ++k;
+                }
+            }
+            final double[] p = parabola.fit(u, logy, w, new double[3]).getParams();
+            if (!(p[2] < 0)) {
+                return null;
+            }
+            final double shift = -p[1] / (2 * p[2]);
+            return new double[]{
+                baseline,
+                baseline + Math.exp(p[0] + p[1] * shift / 2),
+                x0 + shift,
+                Math.sqrt(-1 / (2 * p[2]))
+            };
+        }
+
+        @Override
+        public int getMaxNumParams() {
+            return 4;
         }
 
         @Override
@@ -94,9 +345,21 @@ public class GaussianFit {
             return "Gaussian Fit";
         }
 
-        public synchronized double[] getResolution() {
+        public double[] getResolution() {
             return new double[]{params[3] * FWHM, params[3] * FWTM}; 
         }
 
+        /**
+         *
+         * @return the standard errors of {FWHM, FWTM}, from the one of the
+         * width in the last fit, NaN when it has no covariance, e.g. with
+         * {@link #setRefinementIterations} 0
+         * @throws MathIllegalStateException before fitting
+         */
+        public double[] getResolutionErrors() {
+            final double error = requireResult().getStandardErrors()[3];
+            return new double[]{error * FWHM, error * FWTM};
+        }
+
     }
 }
@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import cu.centis.RCF.MathUtils;
+import static cu.centis.RCF.fitting.RobustFitter.FWHM;
+import ij.plugin.filter.MaximumFinder;
+import java.util.Arrays;
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+
+/**
+ * Data driven initial guesses for the nonlinear fitters. The abscissas are
+ * expected in increasing order.
+ *
+ * @author alex.vergara
+ */
+public class Initializers {
+
+    /**
+     * Upper bound of the work of the periodogram on non uniform abscissas,
+     * points times frequencies.
+     */
+    private static final double PERIODOGRAM_WORK = 5e7;
+
+    /**
+     * Private Constructor
+     */
+    private Initializers() {
+    }
+
+    /**
+     * Baseline from the minimum, height from the maximum, center from the
+     * centroid of the points above half maximum and width from the half
+     * maximum crossings.
+     *
+     * @param x the abscissas
+     * @param y the observed values
+     * @return {a, b, c, d} for y = a + (b-a)*exp(-(x-c)*(x-c)/(2*d*d))
+     */
+    public static double[] gaussian(double[] x, double[] y) {
+        final double baseline = MathUtils.Min(y);
+        final int peak = argmax(y);
+        final double half = 0.5 * (y[peak] - baseline);
+        double sw = 0, swx = 0;
+        for (int i = 0; i < y.length; i++) {
+            final double h = y[i] - baseline - half;
+            if (h > 0) {
+                sw += h;
+                swx += h * x[i];
+            }
+        }
+        final double center = sw > 0 ? swx / sw : x[peak];
+        return new double[]{baseline, y[peak], center, halfMaxSigma(x, y, peak, baseline)};
+    }
+
+    /**
+     * One gaussian per maximum found by {@link MaximumFinder}, each with its
+     * own height and half maximum width. When fewer maxima than peaks are
+     * found the tallest one is split around its center into pieces sharing
+     * its height.
+     *
+     * @param x the abscissas
+     * @param y the observed values
+     * @param npeaks number of peaks
+     * @return {a, b1, c1, d1, ..., bn, cn, dn}
+     */
+    public static double[] multiGaussian(double[] x, double[] y, int npeaks) {
+        final double baseline = MathUtils.Min(y);
+        final double range = MathUtils.Max(y) - baseline;
+        // maxima come sorted by decreasing amplitude
+        int[] peakpos = MaximumFinder.findMaxima(y, 0.1 * range, false);
+        if (peakpos.length == 0) {
+            peakpos = new int[]{argmax(y)};
+        }
+        final int found = Math.min(npeaks, peakpos.length);
+        final int[] chosen = Arrays.copyOf(peakpos, found);
+        Arrays.sort(chosen);
+
+        double[] guess = new double[3 * npeaks + 1];
+        guess[0] = baseline;
+        int tallest = 0;
+        for (int i = 0; i < found; i++) {
+            final int p = chosen[i];
+            guess[3 * i + 1] = y[p] - baseline;
+            guess[3 * i + 2] = x[p];
+            guess[3 * i + 3] = halfMaxSigma(x, y, p, baseline);
+            if (guess[3 * i + 1] > guess[3 * tallest + 1]) {
+                tallest = i;
+            }
+        }
+        if (found < npeaks) {
+            final double b = guess[3 * tallest + 1] / (npeaks - found + 1);
+            final double c = guess[3 * tallest + 2];
+            final double d = guess[3 * tallest + 3];
+            guess[3 * tallest + 1] = b;
+            for (int i = found; i < npeaks; i++) {
+                final int k = i - found + 1;
+                guess[3 * i + 1] = b;
+                guess[3 * i + 2] = c + (k % 2 == 1 ? d : -d) * ((k + 1) / 2);
+                guess[3 * i + 3] = d;
+            }
+        }
+        return guess;
+    }
+
+    /**
+     * Frequency from the highest peak of the spectrum (FFT on equally spaced
+     * abscissas, periodogram otherwise), then offset, amplitude and phase by
+     * linear least squares at that frequency.
+     *
+     * @param x the abscissas
+     * @param y the observed values
+     * @return {a, b, c, d} for y = a + b * sin(c * x + d)
+     */
+    public static double[] sine(double[] x, double[] y) {
+        final double mean = MathUtils.Mean(y);
+        final double omega = isUniform(x) ? fftFrequency(x, y, mean) : periodogramFrequency(x, y, mean);
+
+        NormalEquations equations = new NormalEquations(3);
+        double[] row = new double[3];
+        row[0] = 1;
+        for (int i = 0; i < x.length; i++) {
+            row[1] = Math.sin(omega * x[i]);
+            row[2] = Math.cos(omega * x[i]);
+            equations.add(row, y[i], 1);
+        }
+        double[] solution = new double[3];
+        if (!equations.solve(solution)) {
+            return new double[]{mean, 0.5 * (MathUtils.Max(y) - MathUtils.Min(y)), omega, 0.0};
+        }
+        // s*sin(wx) + k*cos(wx) = b*sin(wx + d)
+        return new double[]{
+            solution[0],
+            Math.hypot(solution[1], solution[2]),
+            omega,
+            Math.atan2(solution[2], solution[1])
+        };
+    }
+
+    /**
+     * Standard deviation of a gaussian from the distance between its maximum
+     * and the half maximum crossings, the nearer side is used since the far
+     * one may be raised by an overlapped peak.
+     *
+     * @param x the abscissas
+     * @param y the observed values
+     * @param peak index of the maximum
+     * @param baseline the background level
+     * @return the estimated width
+     */
+    public static double halfMaxSigma(double[] x, double[] y, int peak, double baseline) {
+        final double half = baseline + 0.5 * (y[peak] - baseline);
+        double halfWidth = Double.POSITIVE_INFINITY;
+        for (int i = peak; i > 0; i--) {
+            if (y[i - 1] <= half) {
+                halfWidth = x[peak] - interpolate(x[i - 1], y[i - 1], x[i], y[i], half);
+                break;
+            }
+        }
+        for (int i = peak; i < y.length - 1; i++) {
+            if (y[i + 1] <= half) {
+                halfWidth = Math.min(halfWidth, interpolate(x[i], y[i], x[i + 1], y[i + 1], half) - x[peak]);
+                break;
+            }
+        }
+        if (Double.isInfinite(halfWidth) || !(halfWidth > 0)) {
+            // no crossing inside the data
+            return 0.25 * (x[x.length - 1] - x[0]);
+        }
+        return 2 * halfWidth / FWHM;
+    }
+
+    private static double interpolate(double x0, double y0, double x1, double y1, double level) {
+        return y1 == y0 ? x0 : x0 + (level - y0) * (x1 - x0) / (y1 - y0);
+    }
+
+    private static int argmax(double[] y) {
+        int peak = 0;
+        for (int i = 1; i < y.length; i++) {
+            if (y[i] > y[peak]) {
+                peak = i;
+            }
+        }
+        return peak;
+    }
+
+    private static boolean isUniform(double[] x) {
+        if (x.length < 4) {
+            return false;
+        }
+        final double dx = (x[x.length - 1] - x[0]) / (x.length - 1);
+        for (int i = 1; i < x.length; i++) {
+            if (Math.abs(x[i] - x[i - 1] - dx) > 1e-6 * Math.abs(dx)) {
+                return false;
+            }
+        }
+        return dx > 0;
+    }
+
+    private static double fftFrequency(double[] x, double[] y, double mean) {
+        final int n = y.length;
+        final int size = Integer.highestOneBit(n - 1) << 1;
+        double[] signal = new double[size];
+        for (int i = 0; i < n; i++) {
+            signal[i] = y[i] - mean;
+        }
+        Complex[] spectrum = new FastFourierTransformer(DftNormalization.STANDARD).transform(signal, TransformType.FORWARD);
+        int k = 1;
+        double best = 0;
+        for (int i = 1; i <= size / 2; i++) {
+            final double power = spectrum[i].abs();
+            if (power > best) {
+                best = power;
+                k = i;
+            }
+        }
+        // parabolic interpolation between bins
+        double delta = 0;
+        if (k > 1 && k < size / 2) {
+            final double m0 = spectrum[k - 1].abs();
+            final double m2 = spectrum[k + 1].abs();
+            final double denom = m0 - 2 * best + m2;
+            if (denom < 0) {
+                delta = 0.5 * (m0 - m2) / denom;
+            }
+        }
+        final double dx = (x[n - 1] - x[0]) / (n - 1);
+        return 2 * Math.PI * (k + delta) / (size * dx);
+    }
+
+    private static double periodogramFrequency(double[] x, double[] y, double mean) {
+        final int n = x.length;
+        final double span = x[n - 1] - x[0];
+        if (!(span > 0)) {
+            return 2 * Math.PI / n;
+        }
+        final int nfreq = (int) Math.max(Math.min(n / 2, PERIODOGRAM_WORK / n), Math.min(16, n));
+        double omega = 2 * Math.PI / span;
+        double best = -1;
+        for (int k = 1; k <= nfreq; k++) {
+            final double w = 2 * Math.PI * k / span;
+            double sc = 0, ss = 0;
+            for (int i = 0; i < n; i++) {
+                final double r = y[i] - mean;
+                sc += r * Math.cos(w * x[i]);
+                ss += r * Math.sin(w * x[i]);
+            }
+            final double power = sc * sc + ss * ss;
+            if (power > best) {
+                best = power;
+                omega = w;
+            }
+        }
+        return omega;
+    }
+}
@@ -15,7 +15,9 @@
  */
 package cu.centis.RCF.fitting;
 
+import ij.util.Tools;
 import org.apache.commons.math3.exception.NoDataException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
 
 /**
  *
@@ -34,13 +36,30 @@ public class LinearFit {
         // partial derivatives of the above function, with one element for each parameter.
         @Override
         public double[] gradient(double t, double... parameters) throws NoDataException {
+            return new double[]{1, t};
+        }
+
+        @Override
+        public void gradient(double t, double[] parameters, double[] gradient) {
+            gradient[0] = 1;
+            gradient[1] = t;
+        }
+
+        @Override
+        public void valueAll(double[] x, double[] parameters, double[] values) {
             final double a = parameters[0];
             final double b = parameters[1];
+            for (int i = 0; i < x.length; i++) {
+                values[i] = a + b * x[i];
+            }
+        }
 
-            final double a1 = 1;
-            final double b1 = t;
-
-            return new double[]{a1, b1};
+        @Override
+        public void gradientAll(double[] x, double[] parameters, double[] jacobian) {
+            for (int i = 0; i < x.length; i++) {
+                jacobian[2 * i] = 1;
+                jacobian[2 * i + 1] = x[i];
+            }
         }
 
         @Override
@@ -49,11 +68,11 @@ public class LinearFit {
         }
     }
 
-    public static class LinearFitter extends RobustFitter.MyAbstractCurveFitter {
+    public static class LinearFitter extends RobustFitter.MyLinearCurveFitter {
 
         private LinearFitter(double[] xpoints, double[] ypoints) {
-            this.xData = xpoints.clone();
-            this.yData = ypoints.clone();
+            this.xData = xpoints;
+            this.yData = ypoints;
             this.weights = new double[yData.length];
             for (int i = 0; i < yData.length; i++) {
                 this.weights[i] = 1;
@@ -62,14 +81,45 @@ public class LinearFit {
         }
 
         public static LinearFitter create(double[] xpoints, double[] ypoints) {
-            return new LinearFitter(xpoints, ypoints);
+            return new LinearFitter(xpoints.clone(), ypoints.clone());
+        }
+
+        /**
+         * Widens the single precision data once into the arrays of the fitter.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static LinearFitter create(float[] xpoints, float[] ypoints) {
+            return new LinearFitter(Tools.toDouble(xpoints), Tools.toDouble(ypoints));
+        }
+
+        /**
+         * Fitter over views of the caller data. The fitter takes ownership of
+         * a whole double array, which is used in place without a copy and must
+         * not be changed by the caller while the fitter is in use, any other
+         * view is read once.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static LinearFitter create(DataSource xpoints, DataSource ypoints) {
+            DataSource.checkSize(xpoints, ypoints);
+            return new LinearFitter(xpoints.values(), ypoints.values());
         }
 
         @Override
-        public synchronized void fit() {
+        protected double[] getInitialGuess(double[] xpoints, double[] ypoints) {
             // Using default initialization
             double[] initialGuess = new double[]{0.0, 0.0};
-            fit(initialGuess);
+            return initialGuess;
+        }
+
+        @Override
+        public int getMaxNumParams() {
+            return 2;
         }
 
         @Override
@@ -78,4 +128,39 @@ public class LinearFit {
         }
 
     }
+
+    /**
+     * Linear fit updated one sample at a time, see
+     * {@link PolinomialFit.IncrementalPolinomialFitter}.
+     */
+    public static class IncrementalLinearFitter extends PolinomialFit.IncrementalPolinomialFitter {
+
+        private IncrementalLinearFitter(int window) {
+            super(1, window);
+        }
+
+        /**
+         *
+         * @return a fitter over all the samples ever added
+         */
+        public static IncrementalLinearFitter create() {
+            return new IncrementalLinearFitter(0);
+        }
+
+        /**
+         *
+         * @param window number of most recent samples kept in the fit
+         * @return a sliding window fitter
+         * @throws NotStrictlyPositiveException if the window is not positive
+         */
+        public static IncrementalLinearFitter createWindowed(int window) {
+            checkWindow(window);
+            return new IncrementalLinearFitter(window);
+        }
+
+        @Override
+        public String getName() {
+            return "Incremental Linear Fit";
+        }
+    }
 }
@@ -15,6 +15,8 @@
  */
 package cu.centis.RCF.fitting;
 
+import ij.util.Tools;
+import java.util.Arrays;
 import org.apache.commons.math3.exception.NoDataException;
 
 /**
@@ -34,11 +36,22 @@ public class MeanFit {
         // partial derivatives of the above function, with one element for each parameter.
         @Override
         public double[] gradient(double t, double... parameters) throws NoDataException {
-            final double a = parameters[0];
+            return new double[]{1};
+        }
 
-            final double a1 = 1;
+        @Override
+        public void gradient(double t, double[] parameters, double[] gradient) {
+            gradient[0] = 1;
+        }
 
-            return new double[]{a1};
+        @Override
+        public void valueAll(double[] x, double[] parameters, double[] values) {
+            Arrays.fill(values, 0, x.length, parameters[0]);
+        }
+
+        @Override
+        public void gradientAll(double[] x, double[] parameters, double[] jacobian) {
+            Arrays.fill(jacobian, 0, x.length, 1);
         }
 
         @Override
@@ -47,11 +60,11 @@ public class MeanFit {
         }
     }
 
-    public static class MeanFitter extends RobustFitter.MyAbstractCurveFitter {
+    public static class MeanFitter extends RobustFitter.MyLinearCurveFitter {
 
         private MeanFitter(double[] xpoints, double[] ypoints) {
-            this.xData = xpoints.clone();
-            this.yData = ypoints.clone();
+            this.xData = xpoints;
+            this.yData = ypoints;
             this.weights = new double[yData.length];
             for (int i = 0; i < yData.length; i++) {
                 this.weights[i] = 1;
@@ -60,14 +73,45 @@ public class MeanFit {
         }
 
         public static MeanFitter create(double[] xpoints, double[] ypoints) {
-            return new MeanFitter(xpoints, ypoints);
+            return new MeanFitter(xpoints.clone(), ypoints.clone());
+        }
+
+        /**
+         * Widens the single precision data once into the arrays of the fitter.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static MeanFitter create(float[] xpoints, float[] ypoints) {
+            return new MeanFitter(Tools.toDouble(xpoints), Tools.toDouble(ypoints));
+        }
+
+        /**
+         * Fitter over views of the caller data. The fitter takes ownership of
+         * a whole double array, which is used in place without a copy and must
+         * not be changed by the caller while the fitter is in use, any other
+         * view is read once.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static MeanFitter create(DataSource xpoints, DataSource ypoints) {
+            DataSource.checkSize(xpoints, ypoints);
+            return new MeanFitter(xpoints.values(), ypoints.values());
         }
 
         @Override
-        public synchronized void fit() {
+        protected double[] getInitialGuess(double[] xpoints, double[] ypoints) {
             // Using default initialization
             double[] initialGuess = new double[]{0.0};
-            fit(initialGuess);
+            return initialGuess;
+        }
+
+        @Override
+        public int getMaxNumParams() {
+            return 1;
         }
 
         @Override
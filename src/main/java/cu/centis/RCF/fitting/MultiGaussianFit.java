@@ -5,19 +5,32 @@
  */
 package cu.centis.RCF.fitting;
 
-import cu.centis.RCF.MathUtils;
+import ij.util.Tools;
 import static cu.centis.RCF.fitting.RobustFitter.FWHM;
 import static cu.centis.RCF.fitting.RobustFitter.FWTM;
-import ij.plugin.filter.MaximumFinder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MathIllegalStateException;
 import org.apache.commons.math3.exception.NoDataException;
+import org.apache.commons.math3.exception.NotPositiveException;
 
 /**
  *
  * @author alex.vergara
  */
 public class MultiGaussianFit {
-    static class FMultiGauss extends RobustFitter.MyParametricUnivariateFunction {
+    static class FMultiGauss extends RobustFitter.MyParametricUnivariateFunction
+            implements RobustFitter.SeparableFunction {
 
         public int npeaks;
 
@@ -44,7 +57,13 @@ public class MultiGaussianFit {
         @Override
         public double[] gradient(double t, double... parameters) throws NoDataException {
             double[] result = new double[3 * npeaks + 1];
-            result[0] = 1;
+            gradient(t, parameters, result);
+            return result;
+        }
+
+        @Override
+        public void gradient(double t, double[] parameters, double[] gradient) {
+            gradient[0] = 1;
             for (int i = 0; i < npeaks; i++) {
                 final double b = parameters[3 * i + 1];
                 final double c = parameters[3 * i + 2];
@@ -54,11 +73,116 @@ public class MultiGaussianFit {
                 final double i2d2 = 1 / (2 * d * d);
                 final double gauss = Math.exp(-diff * diff * i2d2);
 
-                result[3 * i + 1] = gauss;
-                result[3 * i + 2] = b * gauss * (diff / (d * d));
-                result[3 * i + 3] = b * gauss * (diff * diff / (d * d * d));
+                gradient[3 * i + 1] = gauss;
+                gradient[3 * i + 2] = b * gauss * (diff / (d * d));
+                gradient[3 * i + 3] = b * gauss * (diff * diff / (d * d * d));
+            }
+        }
+
+        @Override
+        public void valueAll(double[] x, double[] parameters, double[] values) {
+            Arrays.fill(values, 0, x.length, parameters[0]);
+            for (int p = 0; p < npeaks; p++) {
+                final double b = parameters[3 * p + 1];
+                final double c = parameters[3 * p + 2];
+                final double d = parameters[3 * p + 3];
+                final double i2d2 = 1 / (2 * d * d);
+                for (int i = 0; i < x.length; i++) {
+                    final double diff = x[i] - c;
+                    values[i] += b * Math.exp(-diff * diff * i2d2);
+                }
+            }
+        }
+
+        @Override
+        public void gradientAll(double[] x, double[] parameters, double[] jacobian) {
+            final int np = 3 * npeaks + 1;
+            for (int i = 0; i < x.length; i++) {
+                jacobian[i * np] = 1;
+            }
+            for (int p = 0; p < npeaks; p++) {
+                final double b = parameters[3 * p + 1];
+                final double c = parameters[3 * p + 2];
+                final double d = parameters[3 * p + 3];
+                final double i2d2 = 1 / (2 * d * d);
+                final double id2 = 1 / (d * d);
+                final double id3 = id2 / d;
+                for (int i = 0, k = 3 * p + 1; i < x.length; i++, k += np) {
+                    final double diff = x[i] - c;
+                    final double gauss = Math.exp(-diff * diff * i2d2);
+                    jacobian[k] = gauss;
+                    jacobian[k + 1] = b * gauss * diff * id2;
+                    jacobian[k + 2] = b * gauss * diff * diff * id3;
+                }
+            }
+        }
+
+        // separable form a + sum(bi*gi), linear {a, b1..bn}, nonlinear {c1, d1, ..., cn, dn}
+        @Override
+        public int getNumLinear() {
+            return npeaks + 1;
+        }
+
+        @Override
+        public int getNumNonlinear() {
+            return 2 * npeaks;
+        }
+
+        @Override
+        public void split(double[] parameters, double[] linear, double[] nonlinear) {
+            linear[0] = parameters[0];
+            for (int p = 0; p < npeaks; p++) {
+                linear[p + 1] = parameters[3 * p + 1];
+                nonlinear[2 * p] = parameters[3 * p + 2];
+                nonlinear[2 * p + 1] = parameters[3 * p + 3];
+            }
+        }
+
+        @Override
+        public double[] join(double[] linear, double[] nonlinear) {
+            double[] parameters = new double[3 * npeaks + 1];
+            parameters[0] = linear[0];
+            for (int p = 0; p < npeaks; p++) {
+                parameters[3 * p + 1] = linear[p + 1];
+                parameters[3 * p + 2] = nonlinear[2 * p];
+                parameters[3 * p + 3] = nonlinear[2 * p + 1];
+            }
+            return parameters;
+        }
+
+        @Override
+        public void basis(double[] x, double[] nonlinear, double[] phi) {
+            final int nl = npeaks + 1;
+            for (int i = 0; i < x.length; i++) {
+                phi[i * nl] = 1;
+            }
+            for (int p = 0; p < npeaks; p++) {
+                final double c = nonlinear[2 * p];
+                final double d = nonlinear[2 * p + 1];
+                final double i2d2 = 1 / (2 * d * d);
+                for (int i = 0, k = p + 1; i < x.length; i++, k += nl) {
+                    final double diff = x[i] - c;
+                    phi[k] = Math.exp(-diff * diff * i2d2);
+                }
+            }
+        }
+
+        @Override
+        public void basisGradient(double[] x, double[] nonlinear, int j, double[] dphi) {
+            // only the basis function of peak j/2 depends on its center and width
+            final int nl = npeaks + 1;
+            final int p = j / 2;
+            final double c = nonlinear[2 * p];
+            final double d = nonlinear[2 * p + 1];
+            final double i2d2 = 1 / (2 * d * d);
+            final double id2 = 1 / (d * d);
+            final double id3 = id2 / d;
+            Arrays.fill(dphi, 0, x.length * nl, 0);
+            for (int i = 0, k = p + 1; i < x.length; i++, k += nl) {
+                final double diff = x[i] - c;
+                final double gauss = Math.exp(-diff * diff * i2d2);
+                dphi[k] = j % 2 == 0 ? gauss * diff * id2 : gauss * diff * diff * id3;
             }
-            return result;
         }
 
         @Override
@@ -67,11 +191,49 @@ public class MultiGaussianFit {
         }
     }
 
+    /**
+     * Information criteria of the peak count selection, from the weighted
+     * sum of squared residuals of n points and p parameters.
+     */
+    public enum Criterion {
+        /**
+         * Akaike, n*ln(chi2/n) + 2p, prone to fit noise spikes on large data
+         */
+        AIC {
+            @Override
+            double penalty(int n, int p) {
+                return 2.0 * p;
+            }
+        },
+        /**
+         * Bayesian (Schwarz), n*ln(chi2/n) + p*ln(n), favours fewer peaks
+         */
+        BIC {
+            @Override
+            double penalty(int n, int p) {
+                return p * Math.log(n);
+            }
+        };
+
+        abstract double penalty(int n, int p);
+
+        public double score(double chi2, int n, int p) {
+            return n * Math.log(chi2 / n) + penalty(n, p);
+        }
+    }
+
     public static class MultiGaussianFitter extends RobustFitter.MyAbstractCurveFitter {
 
+        private int maxPeaks = 0;
+        private Criterion criterion = Criterion.BIC;
+        private double significance = 3;
+        private int starts = 1;
+        private double agreement = 1e-6;
+        private ExecutorService executor;
+
         private MultiGaussianFitter(int npeaks, double[] xpoints, double[] ypoints) {
-            this.xData = xpoints.clone();
-            this.yData = ypoints.clone();
+            this.xData = xpoints;
+            this.yData = ypoints;
             this.weights = new double[yData.length];
             for (int i = 0; i < yData.length; i++) {
                 this.weights[i] = 1;
@@ -81,25 +243,351 @@ public class MultiGaussianFit {
         }
 
         public static MultiGaussianFitter create(int npeaks, double[] xpoints, double[] ypoints) {
-            return new MultiGaussianFitter(npeaks, xpoints, ypoints);
+            return new MultiGaussianFitter(npeaks, xpoints.clone(), ypoints.clone());
+        }
+
+        /**
+         * Widens the single precision data once into the arrays of the fitter.
+         *
+         * @param npeaks the number of peaks
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static MultiGaussianFitter create(int npeaks, float[] xpoints, float[] ypoints) {
+            return new MultiGaussianFitter(npeaks, Tools.toDouble(xpoints), Tools.toDouble(ypoints));
+        }
+
+        /**
+         * Fitter over views of the caller data. The fitter takes ownership of
+         * a whole double array, which is used in place without a copy and must
+         * not be changed by the caller while the fitter is in use, any other
+         * view is read once.
+         *
+         * @param npeaks the number of peaks
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static MultiGaussianFitter create(int npeaks, DataSource xpoints, DataSource ypoints) {
+            DataSource.checkSize(xpoints, ypoints);
+            return new MultiGaussianFitter(npeaks, xpoints.values(), ypoints.values());
+        }
+
+        /**
+         * Fitter choosing the number of peaks on {@link #fit()}, see
+         * {@link #setCriterion}.
+         *
+         * @param maxPeaks the largest number of peaks tried
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return the fitter, with one peak until fitted
+         */
+        public static MultiGaussianFitter createAuto(int maxPeaks, double[] xpoints, double[] ypoints) {
+            MultiGaussianFitter fitter = new MultiGaussianFitter(1, xpoints.clone(), ypoints.clone());
+            fitter.maxPeaks = maxPeaks;
+            return fitter;
+        }
+
+        /**
+         *
+         * @param lcriterion score of the peak count selection, BIC by default
+         */
+        public void setCriterion(Criterion lcriterion) {
+            this.criterion = lcriterion;
+        }
+
+        /**
+         *
+         * @param z in automatic mode a model is rejected if one of its peaks
+         * is lower than z standard errors of its height, 3 by default
+         */
+        public void setSignificance(double z) {
+            this.significance = z;
+        }
+
+        public double getSignificance() {
+            return significance;
+        }
+
+        public int getNumPeaks() {
+            return ((FMultiGauss) this.function).npeaks;
+        }
+
+        /**
+         * In automatic mode fits 1, 2, ... peaks, each model starting from the
+         * previous solution plus a peak at the largest residual, and stops at
+         * the first one that does not improve the criterion or holds a peak
+         * that is not resolved, see {@link #isResolved(FitResult)}. Only the
+         * chosen model becomes the one of the fitter.
+         */
+        @Override
+        public void fit() {
+            if (maxPeaks <= 0) {
+                super.fit();
+                return;
+            }
+            final int n = xData.length;
+            FitResult best = null;
+            double bestScore = Double.POSITIVE_INFINITY;
+            double[] guess = Initializers.multiGaussian(xData, yData, 1);
+            for (int k = 1; k <= maxPeaks; k++) {
+                final FitResult candidate;
+                try {
+                    candidate = fit(xData, yData, weights, guess);
+                } catch (RuntimeException ex) {
+                    if (best == null) {
+                        throw ex;
+                    }
+                    break;
+                }
+                final double score = criterion.score(candidate.getWeightedSumOfSquaredResiduals(), n, candidate.getNumParams());
+                if (score >= bestScore || (best != null && !isResolved(candidate))) {
+                    break;
+                }
+                best = candidate;
+                bestScore = score;
+                if (k < maxPeaks) {
+                    guess = addPeak(best.getParams());
+                }
+            }
+            setResult(best);
+        }
+
+        /**
+         * A criterion alone accepts extra peaks fitted to the noise, e.g. a
+         * low and narrow one next to a real peak.
+         *
+         * @param candidate a fit with several peaks
+         * @return true if every peak has determined errors, is wider than the
+         * mean sampling step and its height is significant
+         */
+        private boolean isResolved(FitResult candidate) {
+            final double[] p = candidate.getParams();
+            final double[] errors = candidate.getStandardErrors();
+            // a peak narrower than the sampling step fits one or two points
+            final double width = 2 * GaussianFit.minWidth(xData);
+            for (int i = 1; i < p.length; i += 3) {
+                if (Double.isNaN(errors[i]) || Double.isNaN(errors[i + 1]) || Double.isNaN(errors[i + 2])) {
+                    return false;
+                }
+                if (Math.abs(p[i + 2]) < width || Math.abs(p[i]) < significance * errors[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * The number of peaks of the fitter follows the result.
+         */
+        @Override
+        protected void setResult(FitResult lresult) {
+            final int npeaks = (lresult.getNumParams() - 1) / 3;
+            if (npeaks != getNumPeaks()) {
+                this.function = newFunction(npeaks);
+            }
+            super.setResult(lresult);
+        }
+
+        /**
+         * A model with as many peaks as the parameters hold, new unless it is
+         * the one of the fitter.
+         */
+        @Override
+        protected RobustFitter.MyParametricUnivariateFunction getFunction(int nparams) {
+            if (nparams < 1 || (nparams - 1) % 3 != 0) {
+                throw new DimensionMismatchException(nparams, 3 * getNumPeaks() + 1);
+            }
+            final int npeaks = (nparams - 1) / 3;
+            return npeaks == getNumPeaks() ? function : newFunction(npeaks);
+        }
+
+        private static FMultiGauss newFunction(int npeaks) {
+            FMultiGauss lfunction = new FMultiGauss();
+            lfunction.setnpeaks(npeaks);
+            return lfunction;
+        }
+
+        /**
+         * The current solution plus a peak centered at the largest residual,
+         * as high as the residual and with its half maximum width.
+         */
+        private double[] addPeak(double[] solution) {
+            final double[] lresiduals = new double[xData.length];
+            getFunction(solution.length).valueAll(xData, solution, lresiduals);
+            int peak = 0;
+            for (int i = 0; i < lresiduals.length; i++) {
+                lresiduals[i] = yData[i] - lresiduals[i];
+                if (lresiduals[i] > lresiduals[peak]) {
+                    peak = i;
+                }
+            }
+            final double[] guess = Arrays.copyOf(solution, solution.length + 3);
+            guess[solution.length] = lresiduals[peak];
+            guess[solution.length + 1] = xData[peak];
+            guess[solution.length + 2] = Initializers.halfMaxSigma(xData, lresiduals, peak, 0);
+            return guess;
+        }
+
+        @Override
+        protected double[] getInitialGuess(double[] xpoints, double[] ypoints) {
+            return Initializers.multiGaussian(xpoints, ypoints, ((FMultiGauss) this.function).npeaks);
+        }
+
+        /**
+         *
+         * @param lstarts number of initial guesses fitted concurrently, the
+         * regular guess plus width perturbations and peak splits. 1 (default)
+         * disables the multi-start
+         */
+        public void setMultiStart(int lstarts) {
+            this.starts = Math.max(1, lstarts);
+        }
+
+        public int getMultiStart() {
+            return starts;
+        }
+
+        /**
+         *
+         * @param tolerance the pending starts are cancelled once two
+         * converged starts, one of them the best so far, agree on the
+         * weighted sum of squared residuals within this relative tolerance,
+         * default 1e-6
+         * @throws NotPositiveException if the tolerance is negative
+         */
+        public void setAgreement(double tolerance) {
+            if (!(tolerance >= 0)) {
+                throw new NotPositiveException(tolerance);
+            }
+            this.agreement = tolerance;
+        }
+
+        public double getAgreement() {
+            return agreement;
+        }
+
+        /**
+         *
+         * @param lexecutor the pool running the starts, null (default) uses
+         * a pool shared by all fitters with one thread per processor
+         */
+        public void setExecutor(ExecutorService lexecutor) {
+            this.executor = lexecutor;
         }
 
         @Override
-        public synchronized void fit() {
-            // Using default initialization
-            int npeaks = ((FMultiGauss) this.function).npeaks;
-            double[] initialGuess = new double[3 * npeaks + 1];
-            initialGuess[0] = 0.0;
-            double max = MathUtils.Max(yData);
-            int[] peakpos = MaximumFinder.findMaxima(yData, 0.1 * max, false);
-            Arrays.sort(peakpos);
-            //TODO: handle overlapped peaks
+        public FitResult fit(double[] xpoints, double[] ypoints, double[] lweights, double[] initialGuess) {
+            if (starts <= 1) {
+                return super.fit(xpoints, ypoints, lweights, initialGuess);
+            }
+            final CompletionService<FitResult> service
+                    = new ExecutorCompletionService<>(executor != null ? executor : SharedPool.POOL);
+            final List<Future<FitResult>> futures = new ArrayList<>(starts);
+            for (final double[] start : getStarts(initialGuess, starts)) {
+                futures.add(service.submit(() -> super.fit(xpoints, ypoints, lweights, start)));
+            }
+            FitResult best = null;
+            boolean confirmed = false;
+            RuntimeException failure = null;
+            try {
+                for (int i = 0; i < futures.size(); i++) {
+                    final FitResult candidate;
+                    try {
+                        candidate = service.take().get();
+                    } catch (ExecutionException ex) {
+                        if (failure == null && ex.getCause() instanceof RuntimeException) {
+                            failure = (RuntimeException) ex.getCause();
+                        }
+                        continue;
+                    }
+                    if (best == null || candidate.getWeightedSumOfSquaredResiduals()
+                            < best.getWeightedSumOfSquaredResiduals()) {
+                        confirmed = agree(candidate, best);
+                        best = candidate;
+                    } else if (agree(candidate, best)) {
+                        confirmed = true;
+                    }
+                    if (confirmed) {
+                        // a second start reached the same minimum
+                        break;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException("Multi-start fit interrupted");
+            } finally {
+                for (Future<FitResult> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            if (best == null) {
+                throw failure != null ? failure : new IllegalStateException("All the starts failed");
+            }
+            return best;
+        }
+
+        private boolean agree(FitResult a, FitResult b) {
+            if (b == null || !a.isConverged() || !b.isConverged()) {
+                return false;
+            }
+            final double sa = a.getWeightedSumOfSquaredResiduals();
+            final double sb = b.getWeightedSumOfSquaredResiduals();
+            return Math.abs(sa - sb) <= agreement * Math.max(sa, sb);
+        }
+
+        /**
+         * The given guess, all widths halved and doubled, then each peak
+         * (tallest first) split in two replacing the smallest one, then
+         * random perturbations of centers and widths.
+         *
+         * @param guess the regular initial guess
+         * @param count number of starts
+         * @return the starting points
+         */
+        protected double[][] getStarts(double[] guess, int count) {
+            final int npeaks = (guess.length - 1) / 3;
+            final double[][] result = new double[count][];
+            result[0] = guess.clone();
+            // peaks by decreasing height
+            final Integer[] order = new Integer[npeaks];
             for (int i = 0; i < npeaks; i++) {
-                initialGuess[3 * i + 1] = max;
-                initialGuess[3 * i + 2] = xData[peakpos[i < peakpos.length ? i : 0]];
-                initialGuess[3 * i + 3] = 1.0;
+                order[i] = i;
             }
-            fit(initialGuess);
+            Arrays.sort(order, (i, j) -> Double.compare(guess[3 * j + 1], guess[3 * i + 1]));
+            final Random random = new Random(npeaks);
+            for (int k = 1; k < count; k++) {
+                final double[] start = guess.clone();
+                final int split = k - 3;
+                if (k <= 2) {
+                    final double factor = k == 1 ? 0.5 : 2.0;
+                    for (int i = 0; i < npeaks; i++) {
+                        start[3 * i + 3] *= factor;
+                    }
+                } else if (npeaks > 1 && split < npeaks - 1) {
+                    final int peak = 3 * order[split];
+                    final int smallest = 3 * order[npeaks - 1];
+                    final double d = guess[peak + 3];
+                    start[peak + 1] = start[smallest + 1] = 0.5 * guess[peak + 1];
+                    start[peak + 2] = guess[peak + 2] - 0.5 * d;
+                    start[smallest + 2] = guess[peak + 2] + 0.5 * d;
+                    start[peak + 3] = start[smallest + 3] = 0.5 * d;
+                } else {
+                    for (int i = 0; i < npeaks; i++) {
+                        final double d = guess[3 * i + 3];
+                        start[3 * i + 2] += 0.5 * d * random.nextGaussian();
+                        start[3 * i + 3] = d * Math.exp(0.3 * random.nextGaussian());
+                    }
+                }
+                result[k] = start;
+            }
+            return result;
+        }
+
+        @Override
+        public int getMaxNumParams() {
+            return 3 * Math.max(maxPeaks, getNumPeaks()) + 1;
         }
 
         @Override
@@ -107,9 +595,34 @@ public class MultiGaussianFit {
             return "Multi Gaussian Fit";
         }
 
-        public synchronized double[] getResolution(int i) {
+        public double[] getResolution(int i) {
             return new double[]{params[3 * i + 3] * FWHM, params[3 * i + 3] * FWTM};
         }
 
+        /**
+         *
+         * @param i the peak index
+         * @return the standard errors of {FWHM, FWTM} of the peak, from the
+         * one of its width in the last fit, NaN when it has no covariance
+         * @throws MathIllegalStateException before fitting
+         */
+        public double[] getResolutionErrors(int i) {
+            final double error = requireResult().getStandardErrors()[3 * i + 3];
+            return new double[]{error * FWHM, error * FWTM};
+        }
+
+        /**
+         * Daemon threads, created on first use of the multi-start.
+         */
+        private static class SharedPool {
+
+            static final ExecutorService POOL = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors(), runnable -> {
+                        Thread thread = new Thread(runnable, "MultiGaussianFit");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+
     }
 }
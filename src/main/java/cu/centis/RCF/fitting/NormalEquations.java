@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.util.Arrays;
+
+/**
+ * Weighted normal equations (A'WA) p = A'Wy of a model linear in its
+ * parameters, accumulated one observation at a time and solved by Cholesky.
+ *
+ * @author alex.vergara
+ */
+class NormalEquations {
+
+    private static final double EPSILON = 1e-12;
+
+    private final int size;
+    private final double[] ata;
+    private final double[] aty;
+    private final double[] factor;
+    private final double[] scale;
+
+    NormalEquations(int size) {
+        this.size = size;
+        this.ata = new double[size * size];
+        this.aty = new double[size];
+        this.factor = new double[size * size];
+        this.scale = new double[size];
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(ata, 0);
+        Arrays.fill(aty, 0);
+    }
+
+    /**
+     * Adds one observation, only the lower triangle of A'WA is accumulated.
+     *
+     * @param row the design row, i.e. the model gradient at x
+     * @param y the observed value
+     * @param w the weight of the observation
+     */
+    void add(double[] row, double y, double w) {
+        for (int i = 0; i < size; i++) {
+            final double wr = w * row[i];
+            final int offset = i * size;
+            for (int j = 0; j <= i; j++) {
+                ata[offset + j] += wr * row[j];
+            }
+            aty[i] += wr * y;
+        }
+    }
+
+    /**
+     *
+     * @param lambda factor applied to everything accumulated so far
+     */
+    void scale(double lambda) {
+        for (int i = 0; i < ata.length; i++) {
+            ata[i] *= lambda;
+        }
+        for (int i = 0; i < size; i++) {
+            aty[i] *= lambda;
+        }
+    }
+
+    /**
+     * Adds lambda times the largest diagonal element to the diagonal, so
+     * empty or collinear columns no longer make the system singular.
+     *
+     * @param lambda the relative ridge
+     */
+    void ridge(double lambda) {
+        double max = 0;
+        for (int i = 0; i < size; i++) {
+            max = Math.max(max, ata[i * size + i]);
+        }
+        final double delta = max > 0 ? lambda * max : lambda;
+        for (int i = 0; i < size; i++) {
+            ata[i * size + i] += delta;
+        }
+    }
+
+    /**
+     * Solves the system, the columns are equilibrated first so polynomial
+     * designs over wide x ranges stay well conditioned.
+     *
+     * @param solution receives the parameters
+     * @return false if the system is singular or not positive definite
+     */
+    boolean solve(double[] solution) {
+        for (int i = 0; i < size; i++) {
+            final double d = ata[i * size + i];
+            if (!(d > 0)) {
+                return false;
+            }
+            scale[i] = 1 / Math.sqrt(d);
+        }
+        // Cholesky factorization L L' of the scaled matrix, in place
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j <= i; j++) {
+                double sum = ata[i * size + j] * scale[i] * scale[j];
+                for (int k = 0; k < j; k++) {
+                    sum -= factor[i * size + k] * factor[j * size + k];
+                }
+                if (i == j) {
+                    if (sum <= EPSILON) {
+                        return false;
+                    }
+                    factor[i * size + i] = Math.sqrt(sum);
+                } else {
+                    factor[i * size + j] = sum / factor[j * size + j];
+                }
+            }
+        }
+        substitute(aty, solution);
+        return true;
+    }
+
+    /**
+     * Solves (A'WA) x = rhs for another right hand side, only valid after a
+     * successful {@link #solve(double[])}.
+     *
+     * @param rhs the right hand side
+     * @param solution receives x
+     */
+    void solve(double[] rhs, double[] solution) {
+        substitute(rhs, solution);
+    }
+
+    /**
+     * Inverse of A'WA, only valid after a successful {@link #solve}.
+     *
+     * @return the unscaled covariance matrix of the parameters
+     */
+    double[][] inverse() {
+        final double[][] result = new double[size][size];
+        final double[] unit = new double[size];
+        final double[] column = new double[size];
+        for (int j = 0; j < size; j++) {
+            unit[j] = 1;
+            substitute(unit, column);
+            unit[j] = 0;
+            for (int i = 0; i < size; i++) {
+                result[i][j] = column[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Solves (A'WA) x = rhs with the current Cholesky factor.
+     */
+    private void substitute(double[] rhs, double[] x) {
+        // forward substitution L z = S rhs
+        for (int i = 0; i < size; i++) {
+            double sum = rhs[i] * scale[i];
+            for (int k = 0; k < i; k++) {
+                sum -= factor[i * size + k] * x[k];
+            }
+            x[i] = sum / factor[i * size + i];
+        }
+        // back substitution L' q = z, then x = S q
+        for (int i = size - 1; i >= 0; i--) {
+            double sum = x[i];
+            for (int k = i + 1; k < size; k++) {
+                sum -= factor[k * size + i] * x[k];
+            }
+            x[i] = sum / factor[i * size + i];
+        }
+        for (int i = 0; i < size; i++) {
+            x[i] *= scale[i];
+        }
+    }
+}
@@ -15,7 +15,12 @@
  */
 package cu.centis.RCF.fitting;
 
+import ij.util.Tools;
+import java.util.Arrays;
 import org.apache.commons.math3.exception.NoDataException;
+import org.apache.commons.math3.exception.NotPositiveException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.OutOfRangeException;
 
 /**
  *
@@ -51,12 +56,42 @@ public class PolinomialFit {
         @Override
         public double[] gradient(double t, double... parameters) throws NoDataException {
             double[] result = new double[order + 1];
+            gradient(t, parameters, result);
+            return result;
+        }
+
+        @Override
+        public void gradient(double t, double[] parameters, double[] gradient) {
             double var = 1.0;
             for (int i = 0; i <= order; i++) {
-                result[i] = var;
+                gradient[i] = var;
                 var *= t;
             }
-            return result;
+        }
+
+        @Override
+        public void valueAll(double[] x, double[] parameters, double[] values) {
+            // Horner scheme, one pass over the points per coefficient
+            Arrays.fill(values, 0, x.length, parameters[order]);
+            for (int k = order - 1; k >= 0; k--) {
+                final double ak = parameters[k];
+                for (int i = 0; i < x.length; i++) {
+                    values[i] = values[i] * x[i] + ak;
+                }
+            }
+        }
+
+        @Override
+        public void gradientAll(double[] x, double[] parameters, double[] jacobian) {
+            final int np = order + 1;
+            for (int i = 0, k = 0; i < x.length; i++, k += np) {
+                final double t = x[i];
+                double var = 1.0;
+                for (int j = 0; j < np; j++) {
+                    jacobian[k + j] = var;
+                    var *= t;
+                }
+            }
         }
 
         @Override
@@ -81,11 +116,11 @@ public class PolinomialFit {
         }
     }
 
-    public static class PolinomialFitter extends RobustFitter.MyAbstractCurveFitter {
+    public static class PolinomialFitter extends RobustFitter.MyLinearCurveFitter {
 
         private PolinomialFitter(int order, double[] xpoints, double[] ypoints) {
-            this.xData = xpoints.clone();
-            this.yData = ypoints.clone();
+            this.xData = xpoints;
+            this.yData = ypoints;
                 this.weights = new double[yData.length];
                 for (int i = 0; i < yData.length; i++) {
                     this.weights[i] = 1;
@@ -95,18 +130,51 @@ public class PolinomialFit {
         }
 
         public static PolinomialFitter create(int order, double[] xpoints, double[] ypoints) {
-            return new PolinomialFitter(order, xpoints, ypoints);
+            return new PolinomialFitter(order, xpoints.clone(), ypoints.clone());
+        }
+
+        /**
+         * Widens the single precision data once into the arrays of the fitter.
+         *
+         * @param order the polinomial order
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static PolinomialFitter create(int order, float[] xpoints, float[] ypoints) {
+            return new PolinomialFitter(order, Tools.toDouble(xpoints), Tools.toDouble(ypoints));
+        }
+
+        /**
+         * Fitter over views of the caller data. The fitter takes ownership of
+         * a whole double array, which is used in place without a copy and must
+         * not be changed by the caller while the fitter is in use, any other
+         * view is read once.
+         *
+         * @param order the polinomial order
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static PolinomialFitter create(int order, DataSource xpoints, DataSource ypoints) {
+            DataSource.checkSize(xpoints, ypoints);
+            return new PolinomialFitter(order, xpoints.values(), ypoints.values());
         }
 
         @Override
-        public synchronized void fit() {
+        protected double[] getInitialGuess(double[] xpoints, double[] ypoints) {
             // Using default initialization
             int order = ((FPolinomial) function).getOrder();
             double[] initialGuess = new double[order + 1];
             for (int i = 0; i <= order; i++) {
                 initialGuess[i] = 1.0;
             }
-            fit(initialGuess);
+            return initialGuess;
+        }
+
+        @Override
+        public int getMaxNumParams() {
+            return ((FPolinomial) function).getOrder() + 1;
         }
 
         @Override
@@ -115,4 +183,179 @@ public class PolinomialFit {
         }
 
     }
+
+    /**
+     * Polinomial fit updated one sample at a time. Only the weighted normal
+     * equations are kept, so each sample costs O(p^2) and the history is never
+     * re-read. Older samples can be discounted by an exponential forgetting
+     * factor and/or dropped by a sliding window.
+     */
+    public static class IncrementalPolinomialFitter {
+
+        private final FPolinomial function;
+        private final NormalEquations equations;
+        private final double[] row, params;
+        private final int window;
+        private final double[] wx, wy, ww;
+        private int head, count, sinceRebuild;
+        private double forgetting = 1.0, forgettingWindow = 1.0;
+        private boolean solved;
+
+        IncrementalPolinomialFitter(int order, int window) {
+            if (order < 0) {
+                throw new NotPositiveException(order);
+            }
+            if (window < 0) {
+                throw new NotPositiveException(window);
+            }
+            this.function = new FPolinomial();
+            this.function.setOrder(order);
+            this.equations = new NormalEquations(order + 1);
+            this.row = new double[order + 1];
+            this.params = new double[order + 1];
+            this.window = window;
+            this.wx = new double[window];
+            this.wy = new double[window];
+            this.ww = new double[window];
+        }
+
+        /**
+         *
+         * @param order the polinomial order
+         * @return a fitter over all the samples ever added
+         */
+        public static IncrementalPolinomialFitter create(int order) {
+            return new IncrementalPolinomialFitter(order, 0);
+        }
+
+        /**
+         *
+         * @param order the polinomial order
+         * @param window number of most recent samples kept in the fit
+         * @return a sliding window fitter
+         * @throws NotStrictlyPositiveException if the window is not positive
+         */
+        public static IncrementalPolinomialFitter createWindowed(int order, int window) {
+            checkWindow(window);
+            return new IncrementalPolinomialFitter(order, window);
+        }
+
+        static void checkWindow(int window) {
+            if (window <= 0) {
+                throw new NotStrictlyPositiveException(window);
+            }
+        }
+
+        /**
+         *
+         * @param lambda factor in (0, 1] applied to the weight of every
+         * previous sample when a new one arrives, 1 means no forgetting
+         * @throws OutOfRangeException if lambda is not in (0, 1]
+         */
+        public void setForgetting(double lambda) {
+            if (!(lambda > 0 && lambda <= 1)) {
+                throw new OutOfRangeException(lambda, 0, 1);
+            }
+            this.forgetting = lambda;
+            this.forgettingWindow = Math.pow(lambda, window);
+            rebuild();
+        }
+
+        public void add(double x, double y) {
+            add(x, y, 1);
+        }
+
+        /**
+         *
+         * @param x the abscissa
+         * @param y the observed value
+         * @param w the weight of the sample
+         */
+        public void add(double x, double y, double w) {
+            if (forgetting != 1.0) {
+                equations.scale(forgetting);
+            }
+            if (window > 0) {
+                if (count == window) {
+                    // the oldest sample has been scaled window times by now
+                    function.gradient(wx[head], params, row);
+                    equations.add(row, wy[head], -ww[head] * forgettingWindow);
+                } else {
+                    ++count;
+                }
+                wx[head] = x;
+                wy[head] = y;
+                ww[head] = w;
+                head = (head + 1) % window;
+            } else {
+                ++count;
+            }
+            function.gradient(x, params, row);
+            equations.add(row, y, w);
+            solved = false;
+            // downdating accumulates rounding errors, start over once per window
+            if (window > 0 && ++sinceRebuild >= window) {
+                rebuild();
+            }
+        }
+
+        private void rebuild() {
+            if (window == 0) {
+                return;
+            }
+            equations.clear();
+            for (int k = 0; k < count; k++) {
+                final int i = (head - count + k + window) % window;
+                equations.scale(forgetting);
+                function.gradient(wx[i], params, row);
+                equations.add(row, wy[i], ww[i]);
+            }
+            sinceRebuild = 0;
+            solved = false;
+        }
+
+        public void clear() {
+            equations.clear();
+            head = 0;
+            count = 0;
+            sinceRebuild = 0;
+            solved = false;
+        }
+
+        /**
+         *
+         * @return the number of samples in the fit
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         *
+         * @return a copy of the coefficients, NaN while the samples do not
+         * determine them
+         */
+        public double[] getParams() {
+            if (!solved) {
+                if (!equations.solve(params)) {
+                    Arrays.fill(params, Double.NaN);
+                }
+                solved = true;
+            }
+            return params.clone();
+        }
+
+        public double f(double x) {
+            getParams();
+            return function.value(x, params);
+        }
+
+        public String getFormula() {
+            return function.getEquation();
+        }
+
+        public String getName() {
+            return "Incremental Polinomial Fit";
+        }
+    }
 }
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+
+/**
+ * Bootstrap and jackknife uncertainties of any fitter, for fits where the
+ * covariance of the Jacobian is not reliable, e.g. after IRLS or with
+ * several peaks. A replicate only changes the weights of the points (the
+ * bootstrap counts of each point or a zero for the point left out), so the
+ * data are never copied. The replicates run in parallel through the
+ * concurrent fit of the same fitter, starting from the fit of the whole
+ * data.
+ *
+ * @author alex.vergara
+ */
+public class Resampling {
+
+    private final RobustFitter.MyAbstractCurveFitter fitter;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private long seed = 42;
+
+    private Resampling(RobustFitter.MyAbstractCurveFitter fitter) {
+        this.fitter = fitter;
+    }
+
+    /**
+     *
+     * @param fitter the fitter, its data and current weights (e.g. from IRLS)
+     * are resampled, it is fitted first if needed
+     * @return a new resampling engine
+     */
+    public static Resampling create(RobustFitter.MyAbstractCurveFitter fitter) {
+        return new Resampling(fitter);
+    }
+
+    /**
+     *
+     * @param threads number of worker threads
+     */
+    public void setParallelism(int threads) {
+        this.parallelism = Math.max(1, threads);
+    }
+
+    /**
+     *
+     * @param lseed seed of the bootstrap draws, the replicates are the same
+     * for any number of threads
+     */
+    public void setSeed(long lseed) {
+        this.seed = lseed;
+    }
+
+    /**
+     * Nonparametric bootstrap, each replicate draws n points with
+     * replacement.
+     *
+     * @param replicates number of replicates
+     * @return the replicates and their statistics
+     */
+    public Result bootstrap(int replicates) {
+        if (replicates <= 0) {
+            throw new NotStrictlyPositiveException(replicates);
+        }
+        final SplittableRandom random = new SplittableRandom(seed);
+        final long[] seeds = new long[replicates];
+        for (int r = 0; r < replicates; r++) {
+            seeds[r] = random.nextLong();
+        }
+        return run(replicates, false, (r, base, w) -> {
+            final SplittableRandom rng = new SplittableRandom(seeds[r]);
+            Arrays.fill(w, 0);
+            for (int i = 0; i < w.length; i++) {
+                w[rng.nextInt(w.length)] += 1;
+            }
+            for (int i = 0; i < w.length; i++) {
+                w[i] *= base[i];
+            }
+        });
+    }
+
+    /**
+     * Delete one jackknife, replicate i leaves point i out.
+     *
+     * @return the replicates and their statistics
+     */
+    public Result jackknife() {
+        return run(fitter.getXPoints().length, true, (r, base, w) -> {
+            System.arraycopy(base, 0, w, 0, w.length);
+            w[r] = 0;
+        });
+    }
+
+    /**
+     * Fills the weights of one replicate.
+     */
+    private interface Resampler {
+
+        void weights(int replicate, double[] base, double[] weights);
+    }
+
+    private Result run(int replicates, boolean jackknife, Resampler resampler) {
+        if (fitter.getResult() == null) {
+            fitter.fit();
+        }
+        final double[] xpoints = fitter.getXPoints();
+        final double[] ypoints = fitter.getYPoints();
+        final double[] base = fitter.weights.clone();
+        final double[] start = fitter.getResult().getParams();
+        final double[][] values = new double[replicates][];
+        final ThreadLocal<double[]> buffers = ThreadLocal.withInitial(() -> new double[xpoints.length]);
+
+        final int grain = Math.max(1, replicates / (4 * parallelism));
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new ReplicateTask(0, replicates, grain, (r) -> {
+                final double[] w = buffers.get();
+                resampler.weights(r, base, w);
+                try {
+                    final FitResult result = fitter.fit(xpoints, ypoints, w, start);
+                    values[r] = result.isConverged() ? result.getParams() : null;
+                } catch (RuntimeException ex) {
+                    values[r] = null;
+                }
+            }));
+        } finally {
+            pool.shutdown();
+        }
+        return new Result(start, values, jackknife);
+    }
+
+    private interface Replicate {
+
+        void run(int replicate);
+    }
+
+    private static class ReplicateTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from, to, grain;
+        private final Replicate replicate;
+
+        ReplicateTask(int from, int to, int grain, Replicate replicate) {
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.replicate = replicate;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                for (int r = from; r < to; r++) {
+                    replicate.run(r);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ReplicateTask(from, mid, grain, replicate),
+                    new ReplicateTask(mid, to, grain, replicate));
+        }
+    }
+
+    /**
+     * Parameters of each replicate, the ones that did not converge are left
+     * out of the statistics.
+     */
+    public static final class Result {
+
+        private final double[] estimate;
+        private final double[][] replicates;
+        private final boolean jackknife;
+        private final int failures;
+
+        private Result(double[] estimate, double[][] values, boolean jackknife) {
+            this.estimate = estimate;
+            this.jackknife = jackknife;
+            int count = 0;
+            for (double[] v : values) {
+                if (v != null) {
+                    ++count;
+                }
+            }
+            this.replicates = new double[count][];
+            for (int r = 0, k = 0; r < values.length; r++) {
+                if (values[r] != null) {
+                    replicates[k++] = values[r];
+                }
+            }
+            this.failures = values.length - count;
+        }
+
+        /**
+         *
+         * @return the parameters fitted to the whole data
+         */
+        public double[] getEstimate() {
+            return estimate.clone();
+        }
+
+        /**
+         *
+         * @return a copy of the parameters of each converged replicate
+         */
+        public double[][] getReplicates() {
+            final double[][] result = new double[replicates.length][];
+            for (int r = 0; r < replicates.length; r++) {
+                result[r] = replicates[r].clone();
+            }
+            return result;
+        }
+
+        /**
+         *
+         * @return the number of replicates that did not converge
+         */
+        public int getFailures() {
+            return failures;
+        }
+
+        public double[] getMean() {
+            final double[] mean = new double[estimate.length];
+            for (double[] v : replicates) {
+                for (int j = 0; j < mean.length; j++) {
+                    mean[j] += v[j];
+                }
+            }
+            for (int j = 0; j < mean.length; j++) {
+                mean[j] /= replicates.length;
+            }
+            return mean;
+        }
+
+        /**
+         *
+         * @return the bias estimate of the parameters, (n - 1) times the
+         * mean shift for the jackknife
+         */
+        public double[] getBias() {
+            final double[] bias = getMean();
+            final double factor = jackknife ? replicates.length - 1 : 1;
+            for (int j = 0; j < bias.length; j++) {
+                bias[j] = factor * (bias[j] - estimate[j]);
+            }
+            return bias;
+        }
+
+        /**
+         *
+         * @return the standard deviation of the bootstrap replicates, or the
+         * jackknife standard error sqrt((n - 1) / n sum (p_i - mean)^2)
+         */
+        public double[] getStandardErrors() {
+            final double[] mean = getMean();
+            final double[] errors = new double[mean.length];
+            for (double[] v : replicates) {
+                for (int j = 0; j < mean.length; j++) {
+                    final double d = v[j] - mean[j];
+                    errors[j] += d * d;
+                }
+            }
+            final int n = replicates.length;
+            final double factor = jackknife ? (n - 1.0) / n : 1.0 / (n - 1);
+            for (int j = 0; j < errors.length; j++) {
+                errors[j] = Math.sqrt(factor * errors[j]);
+            }
+            return errors;
+        }
+
+        /**
+         * Bootstrap percentile intervals. The jackknife replicates are not a
+         * sample of the estimator, use {@link #getStandardErrors()} instead.
+         *
+         * @param level the confidence level, e.g. 0.95
+         * @return {lower, upper}, one bound per parameter
+         */
+        public double[][] getPercentileIntervals(double level) {
+            if (jackknife) {
+                throw new MathIllegalStateException(LocalizedFormats.SIMPLE_MESSAGE,
+                        "percentile intervals need bootstrap replicates");
+            }
+            if (!(level > 0 && level < 1)) {
+                throw new OutOfRangeException(level, 0, 1);
+            }
+            final Percentile percentile = new Percentile().withEstimationType(Percentile.EstimationType.R_7);
+            final double[][] intervals = new double[2][estimate.length];
+            final double[] column = new double[replicates.length];
+            for (int j = 0; j < estimate.length; j++) {
+                for (int r = 0; r < column.length; r++) {
+                    column[r] = replicates[r][j];
+                }
+                percentile.setData(column);
+                intervals[0][j] = percentile.evaluate(50 * (1 - level));
+                intervals[1][j] = percentile.evaluate(50 * (1 + level));
+            }
+            return intervals;
+        }
+    }
+}
@@ -20,16 +20,33 @@ import ij.gui.Plot;
 import ij.gui.PlotWindow;
 import ij.util.Tools;
 import java.awt.Color;
+import java.util.Arrays;
 import java.util.Collection;
 import org.apache.commons.math3.analysis.ParametricUnivariateFunction;
+import org.apache.commons.math3.exception.DimensionMismatchException;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.exception.NotANumberException;
+import org.apache.commons.math3.exception.NumberIsTooLargeException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
 import org.apache.commons.math3.fitting.AbstractCurveFitter;
 import org.apache.commons.math3.fitting.WeightedObservedPoint;
-import org.apache.commons.math3.fitting.WeightedObservedPoints;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresAdapter;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.AbstractRealMatrix;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
 import org.apache.commons.math3.linear.DiagonalMatrix;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+import org.apache.commons.math3.optim.ConvergenceChecker;
+import org.apache.commons.math3.util.Pair;
 import cu.centis.RCF.MathUtils;
 import java.util.Objects;
+import java.util.concurrent.CancellationException;
 
 /**
  *
@@ -43,30 +60,830 @@ public class RobustFitter {
     public static abstract class MyParametricUnivariateFunction implements ParametricUnivariateFunction {
 
         public abstract String getEquation();
+
+        /**
+         * Allocation free version of
+         * {@link #gradient(double, double...)}, built-in functions override it.
+         *
+         * @param t the point where the gradient is evaluated
+         * @param parameters the function parameters
+         * @param gradient receives the partial derivatives, one per parameter
+         */
+        public void gradient(double t, double[] parameters, double[] gradient) {
+            double[] g = gradient(t, parameters);
+            System.arraycopy(g, 0, gradient, 0, g.length);
+        }
+
+        /**
+         * Evaluates the function over a whole array of points. Built-in
+         * functions override it with primitive loops the JIT can vectorize.
+         *
+         * @param x the points
+         * @param parameters the function parameters
+         * @param values receives the function values, same length as x
+         */
+        public void valueAll(double[] x, double[] parameters, double[] values) {
+            for (int i = 0; i < x.length; i++) {
+                values[i] = value(x[i], parameters);
+            }
+        }
+
+        /**
+         * Evaluates the Jacobian over a whole array of points.
+         *
+         * @param x the points
+         * @param parameters the function parameters
+         * @param jacobian receives the partial derivatives in row major order,
+         * {@code x.length * parameters.length} values
+         */
+        public void gradientAll(double[] x, double[] parameters, double[] jacobian) {
+            final int np = parameters.length;
+            final double[] row = new double[np];
+            for (int i = 0; i < x.length; i++) {
+                gradient(x[i], parameters, row);
+                System.arraycopy(row, 0, jacobian, i * np, np);
+            }
+        }
     }
 
+    /**
+     * Function of the form Phi(x; theta) * alpha, linear in the parameters
+     * alpha and nonlinear in theta, fitted by {@link VariableProjection}.
+     */
+    public interface SeparableFunction {
+
+        int getNumLinear();
+
+        int getNumNonlinear();
+
+        /**
+         *
+         * @param parameters the function parameters
+         * @param linear receives the linear parameters alpha
+         * @param nonlinear receives the nonlinear parameters theta
+         */
+        void split(double[] parameters, double[] linear, double[] nonlinear);
+
+        /**
+         *
+         * @param linear the linear parameters alpha
+         * @param nonlinear the nonlinear parameters theta
+         * @return the function parameters
+         */
+        double[] join(double[] linear, double[] nonlinear);
+
+        /**
+         *
+         * @param x the points
+         * @param nonlinear the nonlinear parameters theta
+         * @param phi receives the basis functions in row major order,
+         * {@code x.length * getNumLinear()} values
+         */
+        void basis(double[] x, double[] nonlinear, double[] phi);
+
+        /**
+         *
+         * @param x the points
+         * @param nonlinear the nonlinear parameters theta
+         * @param j index of the nonlinear parameter
+         * @param dphi receives the partial derivatives of the basis functions
+         * with respect to theta_j, same layout as {@link #basis}
+         */
+        void basisGradient(double[] x, double[] nonlinear, int j, double[] dphi);
+    }
+
+    /**
+     * Model and Jacobian of a {@link MyParametricUnivariateFunction} over fixed
+     * abscissas. The Jacobian is filled row by row into one flat buffer, so no
+     * array is allocated per point. When square root weights are given they
+     * are applied to each value and Jacobian row, the target must then be
+     * scaled the same way and no weight matrix is needed. An interrupted
+     * thread aborts the optimization at the next evaluation with a
+     * {@link CancellationException}.
+     */
+    public static class FunctionModel implements MultivariateJacobianFunction {
+
+        private final MyParametricUnivariateFunction function;
+        private final double[] xData;
+        private final double[] sqrtWeights;
+
+        public FunctionModel(MyParametricUnivariateFunction function, double[] xpoints) {
+            this(function, xpoints, null);
+        }
+
+        public FunctionModel(MyParametricUnivariateFunction function, double[] xpoints, double[] sqrtWeights) {
+            this.function = function;
+            this.xData = xpoints;
+            this.sqrtWeights = sqrtWeights;
+        }
+
+        @Override
+        public Pair<RealVector, RealMatrix> value(RealVector point) {
+            if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("Fit interrupted");
+            }
+            final double[] p = point.toArray();
+            final int n = xData.length;
+            final double[] values = new double[n];
+            final JacobianMatrix jacobian = new JacobianMatrix(n, p.length);
+            function.valueAll(xData, p, values);
+            function.gradientAll(xData, p, jacobian.data);
+            if (sqrtWeights != null) {
+                for (int i = 0, k = 0; i < n; i++) {
+                    final double sw = sqrtWeights[i];
+                    values[i] *= sw;
+                    for (int j = 0; j < p.length; j++, k++) {
+                        jacobian.data[k] *= sw;
+                    }
+                }
+            }
+            return new Pair<RealVector, RealMatrix>(new ArrayRealVector(values, false), jacobian);
+        }
+    }
+
+    /**
+     * Row major dense matrix backed by a single array.
+     */
+    static class JacobianMatrix extends AbstractRealMatrix {
+
+        private final int rows, columns;
+        final double[] data;
+
+        JacobianMatrix(int rows, int columns) {
+            this.rows = rows;
+            this.columns = columns;
+            this.data = new double[rows * columns];
+        }
+
+        @Override
+        public int getRowDimension() {
+            return rows;
+        }
+
+        @Override
+        public int getColumnDimension() {
+            return columns;
+        }
+
+        @Override
+        public RealMatrix createMatrix(int rowDimension, int columnDimension) {
+            return new Array2DRowRealMatrix(rowDimension, columnDimension);
+        }
+
+        @Override
+        public RealMatrix copy() {
+            return new Array2DRowRealMatrix(getData(), false);
+        }
+
+        @Override
+        public double getEntry(int row, int column) {
+            return data[row * columns + column];
+        }
+
+        @Override
+        public void setEntry(int row, int column, double value) {
+            data[row * columns + column] = value;
+        }
+
+        @Override
+        public double[][] getData() {
+            final double[][] out = new double[rows][];
+            for (int i = 0; i < rows; i++) {
+                out[i] = Arrays.copyOfRange(data, i * columns, (i + 1) * columns);
+            }
+            return out;
+        }
+
+        @Override
+        public RealMatrix scalarMultiply(double d) {
+            final double[][] out = new double[rows][columns];
+            for (int i = 0, k = 0; i < rows; i++) {
+                final double[] r = out[i];
+                for (int j = 0; j < columns; j++, k++) {
+                    r[j] = d * data[k];
+                }
+            }
+            return new Array2DRowRealMatrix(out, false);
+        }
+    }
+
+    /**
+     * Wraps the model of a problem to stop it at a wall clock deadline and to
+     * remember the best point evaluated, which is what a fit that does not
+     * converge reports.
+     */
+    static class FitMonitor implements MultivariateJacobianFunction {
+
+        private final long start = System.nanoTime();
+        private final long timeout;
+        private MultivariateJacobianFunction model;
+        private double[] target, weights;
+        private double[] best;
+        private double bestCost = Double.POSITIVE_INFINITY;
+        private int evaluations;
+
+        /**
+         *
+         * @param timeoutNanos the time allowed from now, 0 for no limit
+         */
+        FitMonitor(long timeoutNanos) {
+            this.timeout = timeoutNanos;
+        }
+
+        /**
+         *
+         * @param lmodel the monitored model
+         * @param ltarget the target of the problem
+         * @param lweights the weights of the problem, null if implicit
+         * @return this monitor, to be used as the model of the problem
+         */
+        FitMonitor attach(MultivariateJacobianFunction lmodel, double[] ltarget, double[] lweights) {
+            this.model = lmodel;
+            this.target = ltarget;
+            this.weights = lweights;
+            return this;
+        }
+
+        @Override
+        public Pair<RealVector, RealMatrix> value(RealVector point) {
+            if (timeout > 0 && System.nanoTime() - start > timeout) {
+                throw new MathIllegalStateException(LocalizedFormats.SIMPLE_MESSAGE, "fit deadline exceeded");
+            }
+            final Pair<RealVector, RealMatrix> value = model.value(point);
+            ++evaluations;
+            double cost = 0;
+            for (int i = 0; i < target.length; i++) {
+                final double r = target[i] - value.getFirst().getEntry(i);
+                cost += weights == null ? r * r : weights[i] * r * r;
+            }
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = point.toArray();
+            }
+            return value;
+        }
+
+        /**
+         *
+         * @return the point with the lowest cost so far, null before the
+         * first evaluation
+         */
+        double[] getBest() {
+            return best;
+        }
+
+        int getEvaluations() {
+            return evaluations;
+        }
+    }
+
+    /**
+     * Weight functions for IRLS. Residuals are scaled by the tuning constant
+     * times a robust (MAD based) estimate of the residual scale, the constants
+     * give 95% efficiency under gaussian noise.
+     */
+    public enum WeightFunction {
+
+        /**
+         * Legacy 1/|r| weights on the raw residuals, normalized to unit norm.
+         * They do not settle to the tolerance, so IRLS keeps the legacy stop
+         * as soon as R^2 is above 0.9.
+         */
+        ABSOLUTE(1) {
+            @Override
+            public double weight(double residual, double scale) {
+                return 1 / Math.max(0.0001, Math.abs(residual));
+            }
+        },
+        HUBER(1.345) {
+            @Override
+            public double weight(double residual, double scale) {
+                final double u = Math.abs(residual) / (tuning * scale);
+                return u <= 1 ? 1 : 1 / u;
+            }
+        },
+        TUKEY(4.685) {
+            @Override
+            public double weight(double residual, double scale) {
+                final double u = residual / (tuning * scale);
+                if (Math.abs(u) >= 1) {
+                    return 0;
+                }
+                final double v = 1 - u * u;
+                return v * v;
+            }
+        },
+        CAUCHY(2.385) {
+            @Override
+            public double weight(double residual, double scale) {
+                final double u = residual / (tuning * scale);
+                return 1 / (1 + u * u);
+            }
+        },
+        WELSCH(2.985) {
+            @Override
+            public double weight(double residual, double scale) {
+                final double u = residual / (tuning * scale);
+                return Math.exp(-u * u);
+            }
+        };
+
+        protected final double tuning;
+
+        WeightFunction(double tuning) {
+            this.tuning = tuning;
+        }
+
+        public double getTuning() {
+            return tuning;
+        }
+
+        /**
+         *
+         * @param residual the residual of the point
+         * @param scale the robust scale of the residuals
+         * @return the weight of the point
+         */
+        public abstract double weight(double residual, double scale);
+    }
+
+    /**
+     * Base of all fitters. A fitter holds its data and the last fit, that
+     * stateful API is meant for one thread at a time. Once configured, a
+     * fitter can be shared by many threads through
+     * {@link #fit(double[], double[], double[], double[])}, which only reads
+     * the configuration and returns an immutable {@link FitResult}.
+     */
     public static abstract class MyAbstractCurveFitter extends AbstractCurveFitter {
 
         protected MyParametricUnivariateFunction function;
         protected double[] params;
+        private FitResult result;
         protected double[] xData, yData, weights;
+        private boolean implicitWeights = true;
+        private WeightFunction weightFunction = WeightFunction.ABSOLUTE;
+        private double irlsTolerance = 1e-6;
+        private boolean variableProjection = false;
+        private double[] lowerBounds, upperBounds;
+        private FitConfiguration configuration = FitConfiguration.DEFAULT;
+
+        // goodness of fit cache, versioned on params/weights and on the data
+        private long version, dataVersion;
+        private long residualsVersion = -1, yVarianceVersion = -1;
+        private double[] residuals;
+        // IRLS scratch buffers for the median of the residuals and the new weights
+        private double[] scaleWork, weightWork;
+        private double sumResidualsSqr, residualsVariance, yVariance;
 
-        public synchronized void fit(double[] initialGuess) {
+        public void fit(double[] initialGuess) {
             this.params = initialGuess.clone();
-            WeightedObservedPoints points = new WeightedObservedPoints();
-            for (int i = 0; i < xData.length; i++) {
-                points.add(new WeightedObservedPoint(weights[i], xData[i], yData[i]));
+            invalidate();
+            setResult(fit(xData, yData, weights, initialGuess));
+        }
+
+        /**
+         * Makes the given result the current one of this fitter.
+         *
+         * @param lresult a fit of the data held by this fitter
+         */
+        protected void setResult(FitResult lresult) {
+            this.result = lresult;
+            this.params = lresult.getParams();
+            invalidate();
+        }
+
+        /**
+         * Fits using the default initialization of the fitter.
+         */
+        public void fit() {
+            fit(getInitialGuess(xData, yData));
+        }
+
+        /**
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return the default initial guess of the parameters for this data
+         */
+        protected abstract double[] getInitialGuess(double[] xpoints, double[] ypoints);
+
+        /**
+         * Fits the model to the given data without reading or changing the
+         * data and parameters held by this fitter, so it can be called
+         * concurrently.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @param lweights the weights of the points
+         * @param initialGuess the starting parameters
+         * @return the fit result
+         */
+        public FitResult fit(double[] xpoints, double[] ypoints, double[] lweights, double[] initialGuess) {
+            if (variableProjection && getFunction(initialGuess.length) instanceof SeparableFunction) {
+                return fitSeparable(xpoints, ypoints, lweights, initialGuess);
+            }
+            return optimize(xpoints, ypoints, lweights, initialGuess, null);
+        }
+
+        /**
+         * The model fitted for a given number of parameters, the function of
+         * the fitter by default. Fitters whose model size varies return a new
+         * function instead of changing their own, so the concurrent fit never
+         * writes the state of the fitter.
+         *
+         * @param nparams the number of parameters
+         * @return the model
+         */
+        protected MyParametricUnivariateFunction getFunction(int nparams) {
+            return function;
+        }
+
+        /**
+         * Runs the configured solver. A fit stopped by the budgets or the
+         * deadline of the {@link FitConfiguration}, or by a numerical failure,
+         * returns the best point evaluated as a result that is not converged.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @param lweights the weights of the points
+         * @param start the starting parameters
+         * @param checker replaces the convergence test of the configuration,
+         * may be null
+         * @return the fit result
+         */
+        protected FitResult optimize(double[] xpoints, double[] ypoints, double[] lweights, double[] start,
+                final ConvergenceChecker<LeastSquaresProblem.Evaluation> checker) {
+            final FitMonitor monitor = new FitMonitor(configuration.getTimeoutNanos());
+            LeastSquaresProblem problem = getProblem(xpoints, ypoints, lweights, start, monitor);
+            if (checker != null) {
+                problem = new LeastSquaresAdapter(problem) {
+                    @Override
+                    public ConvergenceChecker<LeastSquaresProblem.Evaluation> getConvergenceChecker() {
+                        return checker;
+                    }
+                };
+            }
+            try {
+                return createResult(xpoints, ypoints, lweights, getOptimizer().optimize(problem));
+            } catch (MathIllegalStateException | SingularMatrixException ex) {
+                double[] solution = monitor.getBest();
+                if (solution == null) {
+                    return createResult(xpoints, ypoints, lweights, start, null, 0, 0, false);
+                }
+                final BoxTransform transform = getTransform(solution.length);
+                if (transform != null) {
+                    solution = transform.toExternal(solution);
+                }
+                return createResult(xpoints, ypoints, lweights, solution, null,
+                        monitor.getEvaluations(), monitor.getEvaluations(), false);
+            }
+        }
+
+        /**
+         * Result of an optimization of the problem given by
+         * {@link #getProblem(double[], double[], double[], double[])}, mapped
+         * back from the internal parameters if the fitter has bounds.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @param lweights the weights of the points
+         * @param optimum the optimizer output
+         * @return the fit result
+         */
+        protected FitResult createResult(double[] xpoints, double[] ypoints, double[] lweights,
+                LeastSquaresOptimizer.Optimum optimum) {
+            double[] solution = optimum.getPoint().toArray();
+            double[][] covariance;
+            try {
+                covariance = optimum.getCovariances(1e-14).getData();
+            } catch (SingularMatrixException ex) {
+                covariance = null;
+            }
+            final BoxTransform transform = getTransform(solution.length);
+            if (transform != null) {
+                if (covariance != null) {
+                    covariance = transform.toExternal(solution, covariance);
+                }
+                solution = transform.toExternal(solution);
+            }
+            return createResult(xpoints, ypoints, lweights, solution,
+                    covariance, optimum.getIterations(), optimum.getEvaluations());
+        }
+
+        /**
+         * Variable projection fit, the optimizer only sees the nonlinear
+         * parameters. The covariance is the one of the full model at the
+         * solution.
+         */
+        private FitResult fitSeparable(double[] xpoints, double[] ypoints, double[] lweights, double[] initialGuess) {
+            final MyParametricUnivariateFunction lfunction = getFunction(initialGuess.length);
+            final SeparableFunction separable = (SeparableFunction) lfunction;
+            final VariableProjection projection = new VariableProjection(separable, xpoints, ypoints, lweights);
+            final double[] linear = new double[separable.getNumLinear()];
+            final double[] nonlinear = new double[separable.getNumNonlinear()];
+            separable.split(initialGuess, linear, nonlinear);
+            // only the bounds of the nonlinear parameters can be enforced
+            BoxTransform transform = null;
+            final double[][] bounds = getBounds(initialGuess.length);
+            if (bounds != null) {
+                final double[] lower = new double[nonlinear.length];
+                final double[] upper = new double[nonlinear.length];
+                separable.split(bounds[0], linear, lower);
+                separable.split(bounds[1], linear, upper);
+                transform = new BoxTransform(lower, upper);
+            }
+            final FitMonitor monitor = new FitMonitor(configuration.getTimeoutNanos());
+            double[] theta;
+            int iterations, evaluations;
+            boolean converged = true;
+            try {
+                final LeastSquaresOptimizer.Optimum optimum = getOptimizer().optimize(
+                        projection.getProblem(nonlinear, transform, configuration, monitor));
+                theta = optimum.getPoint().toArray();
+                iterations = optimum.getIterations();
+                evaluations = optimum.getEvaluations();
+            } catch (MathIllegalStateException | SingularMatrixException ex) {
+                theta = monitor.getBest();
+                if (theta == null) {
+                    return createResult(xpoints, ypoints, lweights, initialGuess, null, 0, 0, false);
+                }
+                iterations = evaluations = monitor.getEvaluations();
+                converged = false;
+            }
+            boolean[] pinned = null;
+            if (transform != null) {
+                pinned = transform.atBound(theta);
+                theta = transform.toExternal(theta);
+            }
+            final double[] solution = separable.join(projection.linear(theta), theta);
+            if (!converged) {
+                return createResult(xpoints, ypoints, lweights, solution, null, iterations, evaluations, false);
+            }
+
+            final int np = solution.length;
+            final double[] jacobian = new double[xpoints.length * np];
+            lfunction.gradientAll(xpoints, solution, jacobian);
+            final NormalEquations equations = new NormalEquations(np);
+            final double[] row = new double[np];
+            for (int i = 0; i < xpoints.length; i++) {
+                System.arraycopy(jacobian, i * np, row, 0, np);
+                equations.add(row, 0, lweights[i]);
+            }
+            final double[][] covariance = equations.solve(row) ? equations.inverse() : null;
+            if (covariance != null && pinned != null) {
+                // the nonlinear parameters on a bound, in model order
+                final double[] flags = new double[pinned.length];
+                for (int k = 0; k < pinned.length; k++) {
+                    flags[k] = pinned[k] ? 1 : 0;
+                }
+                final double[] full = separable.join(new double[linear.length], flags);
+                for (int k = 0; k < np; k++) {
+                    if (full[k] != 0) {
+                        BoxTransform.undetermined(covariance, k);
+                    }
+                }
+            }
+            return createResult(xpoints, ypoints, lweights, solution, covariance, iterations, evaluations);
+        }
+
+        /**
+         * Concurrent fit using the default initialization.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @param lweights the weights of the points
+         * @return the fit result
+         */
+        public FitResult fit(double[] xpoints, double[] ypoints, double[] lweights) {
+            return fit(xpoints, ypoints, lweights, getInitialGuess(xpoints, ypoints));
+        }
+
+        /**
+         * Builds the result with its residual statistics, one pass of the
+         * model over the data.
+         */
+        protected FitResult createResult(double[] xpoints, double[] ypoints, double[] lweights,
+                double[] solution, double[][] covariance, int iterations, int evaluations) {
+            return createResult(xpoints, ypoints, lweights, solution, covariance, iterations, evaluations, true);
+        }
+
+        private FitResult createResult(double[] xpoints, double[] ypoints, double[] lweights,
+                double[] solution, double[][] covariance, int iterations, int evaluations, boolean converged) {
+            final int n = xpoints.length;
+            final double[] lresiduals = new double[n];
+            getFunction(solution.length).valueAll(xpoints, solution, lresiduals);
+            double sse = 0, wsse = 0;
+            for (int i = 0; i < n; i++) {
+                final double r = ypoints[i] - lresiduals[i];
+                lresiduals[i] = r;
+                sse += r * r;
+                wsse += lweights[i] * r * r;
             }
-            this.params = fit(points.toList());
+            final double yvariance = MathUtils.Variance(ypoints);
+            final double rSquared = yvariance > 0.0 ? 1.0 - MathUtils.Variance(lresiduals) / yvariance : 0.0;
+            return new FitResult(solution, covariance, n, sse, wsse, rSquared, iterations, evaluations, converged);
         }
 
-        public abstract void fit();
+        /**
+         *
+         * @return the result of the last fit, null before fitting
+         */
+        public FitResult getResult() {
+            return result;
+        }
+
+        /**
+         *
+         * @return the result of the last fit
+         * @throws MathIllegalStateException before fitting
+         */
+        protected FitResult requireResult() {
+            if (result == null) {
+                throw new MathIllegalStateException(LocalizedFormats.SIMPLE_MESSAGE, "no fit result, call fit first");
+            }
+            return result;
+        }
 
-        public synchronized void setWeights(double[] lweights) {
+        /**
+         *
+         * @return the standard errors of the current parameters, NaN when the
+         * fit has no covariance, see {@link FitResult#getStandardErrors()}
+         * @throws MathIllegalStateException before fitting
+         */
+        public double[] getStandardErrors() {
+            return requireResult().getStandardErrors();
+        }
+
+        /**
+         *
+         * @param level the confidence level, e.g. 0.95
+         * @return {lower, upper} bounds of the current parameters, NaN when
+         * the fit has no covariance, see
+         * {@link FitResult#getConfidenceIntervals(double)}
+         * @throws MathIllegalStateException before fitting
+         */
+        public double[][] getConfidenceIntervals(double level) {
+            return requireResult().getConfidenceIntervals(level);
+        }
+
+        /**
+         * Marks the cached residuals and goodness of fit as stale, must be
+         * called whenever params or weights are changed.
+         */
+        protected void invalidate() {
+            ++version;
+        }
+
+        public void setWeights(double[] lweights) {
             this.weights = lweights.clone();
+            invalidate();
+        }
+
+        /**
+         *
+         * @param implicit if true (default) the square root of the weights is
+         * applied inside the model evaluation, otherwise a DiagonalMatrix of
+         * weights is handed to the optimizer
+         */
+        public void setImplicitWeights(boolean implicit) {
+            this.implicitWeights = implicit;
+        }
+
+        /**
+         *
+         * @param lfunction the weight function used by {@link #runIRLS(int)}
+         */
+        public void setWeightFunction(WeightFunction lfunction) {
+            this.weightFunction = lfunction;
+        }
+
+        public WeightFunction getWeightFunction() {
+            return weightFunction;
+        }
+
+        /**
+         *
+         * @param tolerance IRLS stops when the relative change of the
+         * parameters or the largest change of the weights is below it
+         */
+        public void setIRLSTolerance(double tolerance) {
+            this.irlsTolerance = tolerance;
+        }
+
+        /**
+         *
+         * @param projection if true and the function is a
+         * {@link SeparableFunction} the linear parameters are solved exactly
+         * at each iteration and only the nonlinear ones are optimized
+         */
+        public void setVariableProjection(boolean projection) {
+            this.variableProjection = projection;
         }
 
-        public synchronized double f(double x) {
+        public boolean isVariableProjection() {
+            return variableProjection;
+        }
+
+        /**
+         *
+         * @param lconfiguration the solver, its tolerances and the limits of
+         * each fit, {@link FitConfiguration#DEFAULT} by default
+         */
+        public void setConfiguration(FitConfiguration lconfiguration) {
+            this.configuration = Objects.requireNonNull(lconfiguration);
+        }
+
+        public FitConfiguration getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * Box constraints on the parameters, enforced by a change of
+         * variables so the model is never evaluated outside the box. With
+         * variable projection only the bounds of the nonlinear parameters
+         * apply. Fitters whose model size varies take the bounds of their
+         * largest model, a smaller one uses the first values. A parameter
+         * ending on a bound, or fixed, has a NaN standard error.
+         *
+         * @param lower the lower bounds, -Infinity for unbounded parameters
+         * @param upper the upper bounds, Infinity for unbounded parameters,
+         * equal bounds fix the parameter
+         * @throws DimensionMismatchException if the bounds do not hold one
+         * value per parameter, see {@link #getMaxNumParams()}
+         * @throws NotANumberException if a bound is NaN
+         * @throws NumberIsTooLargeException if a lower bound is above the
+         * upper one
+         */
+        public void setBounds(double[] lower, double[] upper) {
+            final int nparams = getMaxNumParams();
+            if (lower.length != nparams) {
+                throw new DimensionMismatchException(lower.length, nparams);
+            }
+            if (upper.length != nparams) {
+                throw new DimensionMismatchException(upper.length, nparams);
+            }
+            for (int i = 0; i < nparams; i++) {
+                if (Double.isNaN(lower[i]) || Double.isNaN(upper[i])) {
+                    throw new NotANumberException();
+                }
+                if (lower[i] > upper[i]) {
+                    throw new NumberIsTooLargeException(lower[i], upper[i], true);
+                }
+            }
+            this.lowerBounds = lower.clone();
+            this.upperBounds = upper.clone();
+        }
+
+        /**
+         * Removes the bounds, the fit is unconstrained.
+         */
+        public void clearBounds() {
+            this.lowerBounds = null;
+            this.upperBounds = null;
+        }
+
+        /**
+         *
+         * @param nparams the number of parameters
+         * @return {lower, upper}, the first nparams bounds set by the user, or
+         * null if unbounded
+         */
+        protected double[][] getBounds(int nparams) {
+            if (lowerBounds == null) {
+                return null;
+            }
+            if (lowerBounds.length < nparams) {
+                throw new DimensionMismatchException(lowerBounds.length, nparams);
+            }
+            if (lowerBounds.length > nparams) {
+                return new double[][]{Arrays.copyOf(lowerBounds, nparams), Arrays.copyOf(upperBounds, nparams)};
+            }
+            return new double[][]{lowerBounds, upperBounds};
+        }
+
+        private BoxTransform getTransform(int nparams) {
+            final double[][] bounds = getBounds(nparams);
+            return bounds == null ? null : new BoxTransform(bounds[0], bounds[1]);
+        }
+
+        /**
+         *
+         * @param point the parameters
+         * @return true if there are no bounds or the point is inside them
+         */
+        protected boolean isFeasible(double[] point) {
+            final double[][] bounds = getBounds(point.length);
+            if (bounds != null) {
+                for (int i = 0; i < point.length; i++) {
+                    if (point[i] < bounds[0][i] || point[i] > bounds[1][i]) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        public double f(double x) {
             return function.value(x, params);
         }
 
@@ -76,37 +893,128 @@ public class RobustFitter {
 
         public abstract String getName();
 
-        public synchronized double[] getParams() {
-            return params;
+        /**
+         *
+         * @return a copy of the current parameters
+         */
+        public double[] getParams() {
+            return params == null ? null : params.clone();
         }
 
         public int getNumParams() {
             return params.length;
         }
 
-        public synchronized double[] getXPoints() {
+        /**
+         *
+         * @return the number of parameters of the model before any fit, the
+         * largest one for fitters whose model size varies. By default the
+         * size of the initial guess of the data held by the fitter
+         */
+        public int getMaxNumParams() {
+            return getInitialGuess(xData, yData).length;
+        }
+
+        public double[] getXPoints() {
             return xData;
         }
 
-        public synchronized double[] getYPoints() {
+        public double[] getYPoints() {
             return yData;
         }
 
-        public double[] getResiduals() {
-            double[] residuals = new double[xData.length];
-            for (int i = 0; i < xData.length; i++) {
-                residuals[i] = yData[i] - f(xData[i]);
+        /**
+         * Replaces the observed values in place keeping the current x axis,
+         * so one fitter can be reused over many curves without allocating.
+         * Weights are reset to 1 and the previous parameters are discarded.
+         *
+         * @param ypoints the new observed values, same length as the x axis
+         */
+        void setYPoints(double[] ypoints) {
+            System.arraycopy(ypoints, 0, yData, 0, yData.length);
+            resetData();
+        }
+
+        /**
+         * Same as {@link #setYPoints(double[])} for single precision data,
+         * widened while copying.
+         *
+         * @param ypoints the new observed values, same length as the x axis
+         */
+        void setYPoints(float[] ypoints) {
+            for (int i = 0; i < yData.length; i++) {
+                yData[i] = ypoints[i];
+            }
+            resetData();
+        }
+
+        /**
+         * Same as {@link #setYPoints(double[])} reading a view.
+         *
+         * @param ypoints the new observed values, same length as the x axis
+         */
+        void setYPoints(DataSource ypoints) {
+            if (ypoints.size() != yData.length) {
+                throw new DimensionMismatchException(ypoints.size(), yData.length);
+            }
+            ypoints.copyTo(yData);
+            resetData();
+        }
+
+        private void resetData() {
+            Arrays.fill(weights, 1);
+            params = null;
+            result = null;
+            ++dataVersion;
+            invalidate();
+        }
+
+        /**
+         * Residuals of the current parameters, computed once per parameter
+         * set and shared by the goodness of fit methods. Must not be modified.
+         */
+        private double[] residuals() {
+            if (residualsVersion != version + dataVersion) {
+                if (residuals == null || residuals.length != xData.length) {
+                    residuals = new double[xData.length];
+                }
+                function.valueAll(xData, params, residuals);
+                double sum = 0;
+                for (int i = 0; i < xData.length; i++) {
+                    residuals[i] = yData[i] - residuals[i];
+                    sum += residuals[i] * residuals[i];
+                }
+                sumResidualsSqr = sum;
+                residualsVariance = MathUtils.Variance(residuals);
+                residualsVersion = version + dataVersion;
             }
             return residuals;
         }
 
+        public double[] getResiduals() {
+            return residuals().clone();
+        }
+
+        /**
+         *
+         * @return the sum of squared (unweighted) residuals
+         */
+        public double getSumOfSquaredResiduals() {
+            residuals();
+            return sumResidualsSqr;
+        }
+
         private double getSumResidualsSqr() {
-            double[] residuals = getResiduals();
-            return MathUtils.Variance(residuals);
+            residuals();
+            return residualsVariance;
         }
 
         public double getRSquared() {
-            double sumMeanDiffSqr = MathUtils.Variance(yData);
+            if (yVarianceVersion != dataVersion) {
+                yVariance = MathUtils.Variance(yData);
+                yVarianceVersion = dataVersion;
+            }
+            double sumMeanDiffSqr = yVariance;
             double rSquared = 0.0;
             if (sumMeanDiffSqr > 0.0) {
                 rSquared = 1.0 - getSumResidualsSqr() / sumMeanDiffSqr;
@@ -114,6 +1022,14 @@ public class RobustFitter {
             return rSquared;
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected LeastSquaresOptimizer getOptimizer() {
+            return configuration.getOptimizer();
+        }
+
         /**
          * {@inheritDoc}
          */
@@ -121,29 +1037,71 @@ public class RobustFitter {
         protected LeastSquaresProblem getProblem(Collection<WeightedObservedPoint> observations) {
             // Prepare least-squares problem.
             final int len = observations.size();
+            final double[] abscissas = new double[len];
             final double[] target = new double[len];
             final double[] lweights = new double[len];
 
             int count = 0;
             for (WeightedObservedPoint obs : observations) {
+                abscissas[count] = obs.getX();
                 target[count] = obs.getY();
                 lweights[count] = obs.getWeight();
                 ++count;
             }
+            return getProblem(abscissas, target, lweights, params);
+        }
 
-            final AbstractCurveFitter.TheoreticalValuesFunction model
-                    = new AbstractCurveFitter.TheoreticalValuesFunction(function,
-                            observations);
+        /**
+         * Least squares problem built directly from the data arrays, without
+         * intermediate observation objects. When the fitter has bounds the
+         * problem is on the internal parameters, see
+         * {@link #createResult(double[], double[], double[], LeastSquaresOptimizer.Optimum)}.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @param lweights the weights of the points
+         * @param start the initial guess
+         * @return the least squares problem
+         */
+        protected LeastSquaresProblem getProblem(double[] xpoints, double[] ypoints, double[] lweights, double[] start) {
+            return getProblem(xpoints, ypoints, lweights, start, null);
+        }
 
+        private LeastSquaresProblem getProblem(double[] xpoints, double[] ypoints, double[] lweights, double[] start,
+                FitMonitor monitor) {
+            final int len = xpoints.length;
+            final MyParametricUnivariateFunction lfunction = getFunction(start.length);
             // Create an optimizer for fitting the curve to the observed points.
-            return new LeastSquaresBuilder().
-                    maxEvaluations(Integer.MAX_VALUE).
-                    maxIterations(Integer.MAX_VALUE).
-                    start(params).
-                    target(target).
-                    weight(new DiagonalMatrix(lweights)).
-                    model(model.getModelFunction(), model.getModelFunctionJacobian()).
-                    build();
+            LeastSquaresBuilder builder = configuration.configure(new LeastSquaresBuilder());
+            MultivariateJacobianFunction model;
+            final double[] target;
+            if (implicitWeights) {
+                target = new double[len];
+                final double[] sqrtWeights = new double[len];
+                for (int i = 0; i < len; i++) {
+                    sqrtWeights[i] = Math.sqrt(lweights[i]);
+                    target[i] = ypoints[i] * sqrtWeights[i];
+                }
+                builder.target(target);
+                model = new FunctionModel(lfunction, xpoints, sqrtWeights);
+            } else {
+                target = ypoints;
+                builder.target(ypoints).
+                        weight(new DiagonalMatrix(lweights));
+                model = new FunctionModel(lfunction, xpoints);
+            }
+            // with bounds the problem is posed on the internal parameters
+            final BoxTransform transform = getTransform(start.length);
+            if (transform != null) {
+                builder.start(transform.toInternal(start));
+                model = transform.wrap(model);
+            } else {
+                builder.start(start);
+            }
+            if (monitor != null) {
+                model = monitor.attach(model, target, implicitWeights ? null : lweights);
+            }
+            return builder.model(model).build();
         }
 
         /**
@@ -180,9 +1138,7 @@ public class RobustFitter {
                 px[i] = tmp;
                 tmp += inc;
             }
-            for (int i = 0; i < npoints; i++) {
-                py[i] = f(px[i]);
-            }
+            function.valueAll(px, getParams(), py);
             a = Tools.getMinMax(py);
             double dataRange = ymax - ymin;
             ymin = Math.max(ymin - dataRange, Math.min(ymin, a[0])); //expand y range for curve, but not too much
@@ -214,28 +1170,156 @@ public class RobustFitter {
             for (int i = 0; i < this.weights.length; i++) {
                 this.weights[i] = 1;
             }
+            invalidate();
             fit();
         }
 
-        public void runIRLS(int iterations) {
-            int iter = 0;
-            if (Objects.isNull(params)){
+        /**
+         * Iteratively reweighted least squares. Each iteration reweights the
+         * points from the current residuals with the configured
+         * {@link WeightFunction} and refits starting from the current
+         * parameters. Stops when the relative change of the parameters or the
+         * largest change of the weights falls below the tolerance, or with
+         * {@link WeightFunction#ABSOLUTE} weights once R^2 is above 0.9.
+         *
+         * @param iterations maximum number of reweighting iterations
+         * @return the number of reweighted fits, 0 if the weights were
+         * already settled
+         */
+        public int runIRLS(int iterations) {
+            if (Objects.isNull(params)) {
                 fit();
             }
+            final double[] previous = new double[params.length];
+            int iter = 0;
             while (iter < iterations) {
-                fit(params);
-                if (getRSquared() > 0.9) {
+                if (weightFunction == WeightFunction.ABSOLUTE && getRSquared() > 0.9) {
                     break;
                 }
-                double[] Rx = getResiduals();
-                double[] xweights = new double[Rx.length];
-                for (int i = 0; i < Rx.length; i++) {
-                    xweights[i] = 1 / Math.max(0.0001, Math.abs(Rx[i]));
+                final double weightChange = reweight(residuals());
+                if (weightChange < irlsTolerance) {
+                    break;
                 }
-                xweights = MathUtils.Normalize(xweights);
-                setWeights(xweights);
+                System.arraycopy(params, 0, previous, 0, params.length);
+                fit(params);
                 ++iter;
+                if (relativeChange(previous, params) < irlsTolerance) {
+                    break;
+                }
+            }
+            return iter;
+        }
+
+        /**
+         * Updates the weights in place from the residuals.
+         *
+         * @return the largest change of a weight relative to the largest
+         * weight
+         */
+        private double reweight(double[] residuals) {
+            final double scale = weightFunction == WeightFunction.ABSOLUTE ? 1 : robustScale(residuals);
+            if (!(scale > 0)) {
+                // exact fit of most points, nothing to reweight
+                return 0;
+            }
+            if (weightWork == null || weightWork.length != residuals.length) {
+                weightWork = new double[residuals.length];
+            }
+            final double[] lweights = weightWork;
+            double norm = 0, maxWeight = 0;
+            for (int i = 0; i < residuals.length; i++) {
+                lweights[i] = weightFunction.weight(residuals[i], scale);
+                norm += lweights[i] * lweights[i];
+                maxWeight = Math.max(maxWeight, lweights[i]);
+            }
+            if (maxWeight == 0) {
+                // every point rejected, keep the previous weights
+                return 0;
+            }
+            norm = weightFunction == WeightFunction.ABSOLUTE ? Math.sqrt(norm) : 1;
+            double maxChange = 0;
+            for (int i = 0; i < residuals.length; i++) {
+                final double w = lweights[i] / norm;
+                maxChange = Math.max(maxChange, Math.abs(w - weights[i]));
+                weights[i] = w;
+            }
+            invalidate();
+            return maxChange * norm / maxWeight;
+        }
+
+        /**
+         * Normalized median absolute deviation of the residuals about zero, as
+         * a fit started from least squares may shift most residuals by the
+         * same offset, which a deviation about their median would hide. Falls
+         * back to the mean absolute residual when more than half of them are
+         * zero.
+         */
+        private double robustScale(double[] residuals) {
+            if (scaleWork == null || scaleWork.length != residuals.length) {
+                scaleWork = new double[residuals.length];
+            }
+            final double mad = MathUtils.MAD(residuals, 0, scaleWork) / 0.6745;
+            if (mad > 0) {
+                return mad;
+            }
+            // the work buffer holds the absolute deviations, reordered
+            double sum = 0;
+            for (int i = 0; i < residuals.length; i++) {
+                sum += scaleWork[i];
+            }
+            return 1.2533 * sum / residuals.length;
+        }
+
+        private static double relativeChange(double[] previous, double[] current) {
+            double diff = 0, norm = 0;
+            for (int i = 0; i < current.length; i++) {
+                final double d = current[i] - previous[i];
+                diff += d * d;
+                norm += current[i] * current[i];
+            }
+            return norm > 0 ? Math.sqrt(diff / norm) : Math.sqrt(diff);
+        }
+    }
+
+    /**
+     * Fitter for models linear in their parameters. By default the weighted
+     * normal equations are solved directly in one pass over the data, the
+     * iterative optimizer is kept as a fallback for singular systems.
+     */
+    public static abstract class MyLinearCurveFitter extends MyAbstractCurveFitter {
+
+        private boolean directSolver = true;
+
+        /**
+         *
+         * @param direct if false always use the iterative optimizer
+         */
+        public void setDirectSolver(boolean direct) {
+            this.directSolver = direct;
+        }
+
+        public boolean isDirectSolver() {
+            return directSolver;
+        }
+
+        @Override
+        public FitResult fit(double[] xpoints, double[] ypoints, double[] lweights, double[] initialGuess) {
+            if (directSolver) {
+                final int size = initialGuess.length;
+                final MyParametricUnivariateFunction lfunction = getFunction(size);
+                NormalEquations equations = new NormalEquations(size);
+                double[] row = new double[size];
+                for (int i = 0; i < xpoints.length; i++) {
+                    lfunction.gradient(xpoints[i], initialGuess, row);
+                    equations.add(row, ypoints[i], lweights[i]);
+                }
+                double[] solution = new double[size];
+                // outside the bounds the clamped iterative solver takes over
+                if (equations.solve(solution) && isFeasible(solution)) {
+                    return createResult(xpoints, ypoints, lweights, solution, equations.inverse(), 1, 1);
+                }
             }
+            return super.fit(xpoints, ypoints, lweights, initialGuess);
         }
     }
 
@@ -15,8 +15,8 @@
  */
 package cu.centis.RCF.fitting;
 
+import ij.util.Tools;
 import org.apache.commons.math3.exception.NoDataException;
-import cu.centis.RCF.MathUtils;
 
 /**
  *
@@ -24,7 +24,8 @@ import cu.centis.RCF.MathUtils;
  */
 public class SineFit {
 
-    static class FSine extends RobustFitter.MyParametricUnivariateFunction {
+    static class FSine extends RobustFitter.MyParametricUnivariateFunction
+            implements RobustFitter.SeparableFunction {
 
         @Override
         public double value(double t, double... parameters) {
@@ -35,17 +36,99 @@ public class SineFit {
         // partial derivatives of the above function, with one element for each parameter.
         @Override
         public double[] gradient(double t, double... parameters) throws NoDataException {
+            double[] result = new double[4];
+            gradient(t, parameters, result);
+            return result;
+        }
+
+        @Override
+        public void gradient(double t, double[] parameters, double[] gradient) {
+            final double b = parameters[1];
+            final double c = parameters[2];
+            final double d = parameters[3];
+
+            final double cos = Math.cos(c * t + d);
+
+            gradient[0] = 1;
+            gradient[1] = Math.sin(c * t + d);
+            gradient[2] = b * t * cos;
+            gradient[3] = b * cos;
+        }
+
+        @Override
+        public void valueAll(double[] x, double[] parameters, double[] values) {
             final double a = parameters[0];
             final double b = parameters[1];
             final double c = parameters[2];
             final double d = parameters[3];
+            for (int i = 0; i < x.length; i++) {
+                values[i] = a + b * Math.sin(c * x[i] + d);
+            }
+        }
+
+        @Override
+        public void gradientAll(double[] x, double[] parameters, double[] jacobian) {
+            final double b = parameters[1];
+            final double c = parameters[2];
+            final double d = parameters[3];
+            for (int i = 0, k = 0; i < x.length; i++, k += 4) {
+                final double phase = c * x[i] + d;
+                final double cos = Math.cos(phase);
+                jacobian[k] = 1;
+                jacobian[k + 1] = Math.sin(phase);
+                jacobian[k + 2] = b * x[i] * cos;
+                jacobian[k + 3] = b * cos;
+            }
+        }
+
+        // separable form a + s*sin(c*x) + k*cos(c*x), with s = b*cos(d) and
+        // k = b*sin(d), only the frequency is nonlinear
+        @Override
+        public int getNumLinear() {
+            return 3;
+        }
 
-            final double a1 = 1;
-            final double b1 = Math.sin(c * t + d);
-            final double c1 = b * t * Math.cos(c * t + d);
-            final double d1 = b * Math.cos(c * t + d);
+        @Override
+        public int getNumNonlinear() {
+            return 1;
+        }
+
+        @Override
+        public void split(double[] parameters, double[] linear, double[] nonlinear) {
+            linear[0] = parameters[0];
+            linear[1] = parameters[1] * Math.cos(parameters[3]);
+            linear[2] = parameters[1] * Math.sin(parameters[3]);
+            nonlinear[0] = parameters[2];
+        }
+
+        @Override
+        public double[] join(double[] linear, double[] nonlinear) {
+            return new double[]{
+                linear[0],
+                Math.hypot(linear[1], linear[2]),
+                nonlinear[0],
+                Math.atan2(linear[2], linear[1])
+            };
+        }
 
-            return new double[]{a1, b1, c1, d1};
+        @Override
+        public void basis(double[] x, double[] nonlinear, double[] phi) {
+            final double c = nonlinear[0];
+            for (int i = 0, k = 0; i < x.length; i++, k += 3) {
+                phi[k] = 1;
+                phi[k + 1] = Math.sin(c * x[i]);
+                phi[k + 2] = Math.cos(c * x[i]);
+            }
+        }
+
+        @Override
+        public void basisGradient(double[] x, double[] nonlinear, int j, double[] dphi) {
+            final double c = nonlinear[0];
+            for (int i = 0, k = 0; i < x.length; i++, k += 3) {
+                dphi[k] = 0;
+                dphi[k + 1] = x[i] * Math.cos(c * x[i]);
+                dphi[k + 2] = -x[i] * Math.sin(c * x[i]);
+            }
         }
 
         @Override
@@ -57,8 +140,8 @@ public class SineFit {
     public static class SineFitter extends RobustFitter.MyAbstractCurveFitter {
 
         private SineFitter(double[] xpoints, double[] ypoints) {
-            this.xData = xpoints.clone();
-            this.yData = ypoints.clone();
+            this.xData = xpoints;
+            this.yData = ypoints;
             this.weights = new double[yData.length];
             for (int i = 0; i < yData.length; i++) {
                 this.weights[i] = 1;
@@ -67,19 +150,43 @@ public class SineFit {
         }
 
         public static SineFitter create(double[] xpoints, double[] ypoints) {
-            return new SineFitter(xpoints, ypoints);
+            return new SineFitter(xpoints.clone(), ypoints.clone());
+        }
+
+        /**
+         * Widens the single precision data once into the arrays of the fitter.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static SineFitter create(float[] xpoints, float[] ypoints) {
+            return new SineFitter(Tools.toDouble(xpoints), Tools.toDouble(ypoints));
+        }
+
+        /**
+         * Fitter over views of the caller data. The fitter takes ownership of
+         * a whole double array, which is used in place without a copy and must
+         * not be changed by the caller while the fitter is in use, any other
+         * view is read once.
+         *
+         * @param xpoints the abscissas
+         * @param ypoints the observed values
+         * @return a new fitter
+         */
+        public static SineFitter create(DataSource xpoints, DataSource ypoints) {
+            DataSource.checkSize(xpoints, ypoints);
+            return new SineFitter(xpoints.values(), ypoints.values());
         }
 
         @Override
-        public synchronized void fit() {
-            // Using default initialization
-            double[] initialGuess = new double[]{
-                yData[0],
-                0.5 * (MathUtils.Max(yData) - MathUtils.Min(yData)),
-                2 * Math.PI / yData.length,
-                0.0
-            };
-            fit(initialGuess);
+        protected double[] getInitialGuess(double[] xpoints, double[] ypoints) {
+            return Initializers.sine(xpoints, ypoints);
+        }
+
+        @Override
+        public int getMaxNumParams() {
+            return 4;
         }
 
         @Override
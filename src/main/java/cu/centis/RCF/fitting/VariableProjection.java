@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import cu.centis.RCF.fitting.RobustFitter.FitMonitor;
+import cu.centis.RCF.fitting.RobustFitter.JacobianMatrix;
+import cu.centis.RCF.fitting.RobustFitter.SeparableFunction;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
+import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
+import org.apache.commons.math3.fitting.leastsquares.MultivariateJacobianFunction;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularMatrixException;
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Variable projection (Golub-Pereyra) for separable least squares. For each
+ * theta the linear parameters are solved exactly, alpha(theta) = A+ y with
+ * A = W^1/2 Phi(theta), so the optimizer only iterates over theta on the
+ * projected residual (I - A A+) y, with the full Golub-Pereyra Jacobian.
+ *
+ * @author alex.vergara
+ */
+class VariableProjection implements MultivariateJacobianFunction {
+
+    private static final double RIDGE = 1e-8;
+
+    private final SeparableFunction function;
+    private final double[] xData, target, sqrtWeights;
+    private final int nlinear, nnonlinear;
+    private final NormalEquations equations;
+    private final double[] row;
+
+    /**
+     *
+     * @param function the separable model
+     * @param xpoints the abscissas
+     * @param ypoints the observed values
+     * @param lweights the weights of the points
+     */
+    VariableProjection(SeparableFunction function, double[] xpoints, double[] ypoints, double[] lweights) {
+        final int n = xpoints.length;
+        this.function = function;
+        this.xData = xpoints;
+        this.target = new double[n];
+        this.sqrtWeights = new double[n];
+        for (int i = 0; i < n; i++) {
+            sqrtWeights[i] = Math.sqrt(lweights[i]);
+            target[i] = ypoints[i] * sqrtWeights[i];
+        }
+        this.nlinear = function.getNumLinear();
+        this.nnonlinear = function.getNumNonlinear();
+        this.equations = new NormalEquations(nlinear);
+        this.row = new double[nlinear];
+    }
+
+    /**
+     *
+     * @param start the initial nonlinear parameters
+     * @param transform bounds of the nonlinear parameters, may be null
+     * @param configuration the budgets of the fit
+     * @param monitor watches the evaluations, may be null
+     * @return the reduced problem over the nonlinear parameters, internal
+     * ones if bounded
+     */
+    LeastSquaresProblem getProblem(double[] start, BoxTransform transform,
+            FitConfiguration configuration, FitMonitor monitor) {
+        MultivariateJacobianFunction model = transform == null ? this : transform.wrap(this);
+        if (monitor != null) {
+            model = monitor.attach(model, target, null);
+        }
+        return configuration.configure(new LeastSquaresBuilder()).
+                start(transform == null ? start : transform.toInternal(start)).
+                target(target).
+                model(model).
+                build();
+    }
+
+    /**
+     *
+     * @param nonlinear the nonlinear parameters
+     * @return the optimal linear parameters for them
+     */
+    double[] linear(double[] nonlinear) {
+        final double[] phi = new double[xData.length * nlinear];
+        final double[] alpha = new double[nlinear];
+        solveLinear(nonlinear, phi, alpha);
+        return alpha;
+    }
+
+    /**
+     * Fills the weighted basis and solves the linear parameters, leaves the
+     * Cholesky factor of A'A in the normal equations.
+     */
+    private void solveLinear(double[] nonlinear, double[] phi, double[] alpha) {
+        function.basis(xData, nonlinear, phi);
+        equations.clear();
+        for (int i = 0, k = 0; i < xData.length; i++, k += nlinear) {
+            final double sw = sqrtWeights[i];
+            for (int j = 0; j < nlinear; j++) {
+                phi[k + j] *= sw;
+                row[j] = phi[k + j];
+            }
+            equations.add(row, target[i], 1);
+        }
+        // a tiny ridge keeps the amplitudes bounded when a step moves a peak
+        // out of the data or onto another one
+        equations.ridge(RIDGE);
+        if (!equations.solve(alpha)) {
+            throw new SingularMatrixException();
+        }
+    }
+
+    @Override
+    public Pair<RealVector, RealMatrix> value(RealVector point) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("Fit interrupted");
+        }
+        final double[] theta = point.toArray();
+        final int n = xData.length;
+        final double[] phi = new double[n * nlinear];
+        final double[] alpha = new double[nlinear];
+        solveLinear(theta, phi, alpha);
+
+        // projection of the data on the range of A
+        final double[] values = new double[n];
+        for (int i = 0, k = 0; i < n; i++, k += nlinear) {
+            double sum = 0;
+            for (int j = 0; j < nlinear; j++) {
+                sum += phi[k + j] * alpha[j];
+            }
+            values[i] = sum;
+        }
+
+        // column j: P (dA/dtheta_j) alpha + A+' (dA/dtheta_j)' r, r = P y
+        final JacobianMatrix jacobian = new JacobianMatrix(n, nnonlinear);
+        final double[] dphi = new double[n * nlinear];
+        final double[] dalpha = new double[n];
+        final double[] atd = new double[nlinear];
+        final double[] dtr = new double[nlinear];
+        final double[] z = new double[nlinear];
+        final double[] u = new double[nlinear];
+        for (int j = 0; j < nnonlinear; j++) {
+            function.basisGradient(xData, theta, j, dphi);
+            Arrays.fill(atd, 0);
+            Arrays.fill(dtr, 0);
+            for (int i = 0, k = 0; i < n; i++, k += nlinear) {
+                final double sw = sqrtWeights[i];
+                final double r = target[i] - values[i];
+                double sum = 0;
+                for (int l = 0; l < nlinear; l++) {
+                    final double dil = dphi[k + l] * sw;
+                    sum += dil * alpha[l];
+                    dtr[l] += dil * r;
+                }
+                dalpha[i] = sum;
+                for (int l = 0; l < nlinear; l++) {
+                    atd[l] += phi[k + l] * sum;
+                }
+            }
+            equations.solve(atd, z);
+            equations.solve(dtr, u);
+            for (int l = 0; l < nlinear; l++) {
+                z[l] -= u[l];
+            }
+            for (int i = 0, k = 0; i < n; i++, k += nlinear) {
+                double sum = 0;
+                for (int l = 0; l < nlinear; l++) {
+                    sum += phi[k + l] * z[l];
+                }
+                jacobian.data[i * nnonlinear + j] = dalpha[i] - sum;
+            }
+        }
+        return new Pair<RealVector, RealMatrix>(new ArrayRealVector(values, false), jacobian);
+    }
+}
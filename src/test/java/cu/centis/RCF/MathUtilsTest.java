@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 CENTIS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.math3.stat.StatUtils;
+import org.apache.commons.math3.stat.descriptive.rank.Percentile;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class MathUtilsTest {
+
+    private static final double[] PROBABILITIES = {0, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 1};
+
+    /**
+     *
+     * @return values with repeated entries, quickselect must handle the ties
+     */
+    private static double[] values(int size) {
+        final Random random = new Random(5);
+        final double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = random.nextInt(3) == 0 ? Math.floor(4 * random.nextGaussian()) : random.nextGaussian();
+        }
+        return values;
+    }
+
+    private static double percentile(double[] values, double p) {
+        if (p == 0) {
+            // out of the domain of Percentile, R type 7 gives the minimum
+            return StatUtils.min(values);
+        }
+        return new Percentile().withEstimationType(Percentile.EstimationType.R_7).evaluate(values, 100 * p);
+    }
+
+    @Test
+    public void quantileMatchesPercentile() {
+        for (int size : new int[]{1, 2, 3, 10, 101, 1000}) {
+            final double[] values = values(size);
+            final double[] work = new double[size];
+            for (double p : PROBABILITIES) {
+                assertEquals("size " + size + " p " + p, percentile(values, p),
+                        MathUtils.Quantile(values, p, work), 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void medianMatchesPercentile() {
+        for (int size : new int[]{1, 2, 7, 64, 999}) {
+            final double[] values = values(size);
+            assertEquals(percentile(values, 0.5), MathUtils.Median(values), 1e-12);
+        }
+    }
+
+    @Test
+    public void medianInPlaceKeepsTheValues() {
+        final double[] values = values(500);
+        final double expected = percentile(values, 0.5);
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        assertEquals(expected, MathUtils.Median(values, values), 1e-12);
+        Arrays.sort(values);
+        assertArrayEquals(sorted, values, 0);
+    }
+
+    @Test
+    public void madMatchesPercentile() {
+        final double[] values = values(777);
+        final double median = percentile(values, 0.5);
+        final double[] deviations = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            deviations[i] = Math.abs(values[i] - median);
+        }
+        assertEquals(percentile(deviations, 0.5), MathUtils.MAD(values), 1e-12);
+    }
+
+    @Test
+    public void madAboutACenter() {
+        final double[] values = values(501);
+        final double[] deviations = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            deviations[i] = Math.abs(values[i] - 0.25);
+        }
+        assertEquals(percentile(deviations, 0.5), MathUtils.MAD(values, 0.25, new double[values.length]), 1e-12);
+    }
+
+    @Test
+    public void trimmedMeanMatchesSortedMean() {
+        final double[] values = values(203);
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final double fraction = 0.1;
+        final int cut = (int) (fraction * sorted.length);
+        double sum = 0;
+        for (int i = cut; i < sorted.length - cut; i++) {
+            sum += sorted[i];
+        }
+        assertEquals(sum / (sorted.length - 2 * cut),
+                MathUtils.TrimmedMean(values, fraction, new double[values.length]), 1e-12);
+    }
+
+    @Test
+    public void emptyQuantileIsNaN() {
+        assertTrue(Double.isNaN(MathUtils.Quantile(new double[0], 0.5, new double[0])));
+    }
+
+    /**
+     *
+     * @return ragged rows, with an empty one and, when large, rows cut in
+     * several parallel chunks
+     */
+    private static double[][] rows(int size) {
+        final double[] values = values(size);
+        final int[] cuts = {0, size / 7, size / 7, size / 2, size};
+        final double[][] rows = new double[cuts.length - 1][];
+        for (int r = 0; r < rows.length; r++) {
+            rows[r] = Arrays.copyOfRange(values, cuts[r], cuts[r + 1]);
+        }
+        return rows;
+    }
+
+    private static double[] concat(double[][] rows) {
+        int size = 0;
+        for (double[] row : rows) {
+            size += row.length;
+        }
+        final double[] values = new double[size];
+        for (int r = 0, k = 0; r < rows.length; k += rows[r].length, r++) {
+            System.arraycopy(rows[r], 0, values, k, rows[r].length);
+        }
+        return values;
+    }
+
+    @Test
+    public void reductionsMatchStatUtils() {
+        // below and above the parallel threshold
+        for (int size : new int[]{1000, 300000}) {
+            final double[][] rows = rows(size);
+            final double[] values = concat(rows);
+            assertEquals(StatUtils.min(values), MathUtils.Min(rows), 0);
+            assertEquals(StatUtils.max(values), MathUtils.Max(rows), 0);
+            assertEquals(StatUtils.min(values), MathUtils.Min(values), 0);
+            assertEquals(StatUtils.max(values), MathUtils.Max(values), 0);
+            assertEquals(StatUtils.sumSq(values), MathUtils.SumOfSquares(rows), 1e-9 * StatUtils.sumSq(values));
+            assertEquals(StatUtils.sumSq(values), MathUtils.SumOfSquares(values), 1e-9 * StatUtils.sumSq(values));
+            assertEquals(StatUtils.mean(values), MathUtils.Mean(rows), 1e-12);
+            assertEquals(StatUtils.variance(values), MathUtils.Variance(rows), 1e-9);
+        }
+    }
+
+    @Test
+    public void floatExtremaMatchDoubles() {
+        final double[][] rows = rows(200000);
+        final float[][] frows = new float[rows.length][];
+        final double[][] widened = new double[rows.length][];
+        for (int r = 0; r < rows.length; r++) {
+            frows[r] = new float[rows[r].length];
+            widened[r] = new double[rows[r].length];
+            for (int i = 0; i < rows[r].length; i++) {
+                frows[r][i] = (float) rows[r][i];
+                widened[r][i] = frows[r][i];
+            }
+        }
+        assertEquals(MathUtils.Min(widened), MathUtils.Min(frows), 0);
+        assertEquals(MathUtils.Max(widened), MathUtils.Max(frows), 0);
+    }
+
+    @Test
+    public void extremaSkipNaN() {
+        final double[][] rows = {{Double.NaN, 2, -1}, {Double.NaN}, {5}};
+        assertEquals(-1, MathUtils.Min(rows), 0);
+        assertEquals(5, MathUtils.Max(rows), 0);
+        assertTrue(Double.isNaN(MathUtils.Min(new double[][]{{}})));
+    }
+}
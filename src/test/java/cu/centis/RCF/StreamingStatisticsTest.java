@@ -0,0 +1,134 @@
+/*
+ * Copyright 2017 CENTIS
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF;
+
+import java.util.Random;
+import org.apache.commons.math3.stat.descriptive.DescriptiveStatistics;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class StreamingStatisticsTest {
+
+    private static final double TOLERANCE = 1e-8;
+
+    /**
+     *
+     * @return skewed values with a large offset, which a naive sum of powers
+     * would not survive
+     */
+    private static double[] values(int size) {
+        final Random random = new Random(11);
+        final double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            values[i] = 1e6 + Math.exp(random.nextGaussian());
+        }
+        return values;
+    }
+
+    private static void assertSame(StreamingStatistics expected, StreamingStatistics actual) {
+        assertEquals(expected.getN(), actual.getN());
+        assertEquals(expected.getMin(), actual.getMin(), 0);
+        assertEquals(expected.getMax(), actual.getMax(), 0);
+        assertRelative(expected.getSum(), actual.getSum());
+        assertRelative(expected.getSumOfSquares(), actual.getSumOfSquares());
+        assertRelative(expected.getMean(), actual.getMean());
+        assertRelative(expected.getVariance(), actual.getVariance());
+        assertRelative(expected.getSkewness(), actual.getSkewness());
+        assertRelative(expected.getKurtosis(), actual.getKurtosis());
+    }
+
+    private static void assertRelative(double expected, double actual) {
+        assertEquals(expected, actual, TOLERANCE * Math.max(1, Math.abs(expected)));
+    }
+
+    @Test
+    public void matchesCommonsMath() {
+        final double[] values = values(5000);
+        final DescriptiveStatistics reference = new DescriptiveStatistics(values);
+        final StreamingStatistics stats = StreamingStatistics.of(values);
+        assertEquals(reference.getN(), stats.getN());
+        assertEquals(reference.getMin(), stats.getMin(), 0);
+        assertEquals(reference.getMax(), stats.getMax(), 0);
+        assertRelative(reference.getSum(), stats.getSum());
+        assertRelative(reference.getSumsq(), stats.getSumOfSquares());
+        assertRelative(reference.getMean(), stats.getMean());
+        assertRelative(reference.getVariance(), stats.getVariance());
+        assertRelative(reference.getPopulationVariance(), stats.getPopulationVariance());
+        assertRelative(reference.getSkewness(), stats.getSkewness());
+        assertRelative(reference.getKurtosis(), stats.getKurtosis());
+    }
+
+    @Test
+    public void singleValuesMatchBulk() {
+        final double[] values = values(3000);
+        final StreamingStatistics single = new StreamingStatistics();
+        for (double x : values) {
+            single.add(x);
+        }
+        assertSame(StreamingStatistics.of(values), single);
+    }
+
+    @Test
+    public void mergeMatchesSinglePass() {
+        final double[] values = values(3000);
+        final StreamingStatistics whole = StreamingStatistics.of(values);
+        // uneven chunks, including an empty one and a single value
+        final int[] cuts = {0, 1, 1, 700, 2048, 3000};
+        final StreamingStatistics merged = new StreamingStatistics();
+        for (int c = 1; c < cuts.length; c++) {
+            StreamingStatistics chunk = new StreamingStatistics();
+            chunk.addAll(values, cuts[c - 1], cuts[c]);
+            merged.merge(chunk);
+        }
+        assertSame(whole, merged);
+    }
+
+    @Test
+    public void floatsMatchWidenedDoubles() {
+        final double[] values = values(1500);
+        final float[] floats = new float[values.length];
+        final double[] widened = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = (float) values[i];
+            widened[i] = floats[i];
+        }
+        final StreamingStatistics stats = new StreamingStatistics();
+        stats.addAll(floats);
+        assertSame(StreamingStatistics.of(widened), stats);
+    }
+
+    @Test
+    public void undefinedStatisticsAreNaN() {
+        final StreamingStatistics stats = new StreamingStatistics();
+        assertTrue(Double.isNaN(stats.getMean()));
+        assertTrue(Double.isNaN(stats.getVariance()));
+        assertTrue(Double.isNaN(stats.getMin()));
+        stats.add(2);
+        assertEquals(0, stats.getVariance(), 0);
+        assertTrue(Double.isNaN(stats.getSkewness()));
+        stats.add(3);
+        stats.add(7);
+        assertTrue(Double.isNaN(stats.getKurtosis()));
+        stats.clear();
+        assertEquals(0, stats.getN());
+        assertTrue(Double.isNaN(stats.getMax()));
+    }
+}
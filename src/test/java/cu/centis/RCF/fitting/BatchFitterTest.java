@@ -0,0 +1,196 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.util.Random;
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.apache.commons.math3.exception.NoDataException;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class BatchFitterTest {
+
+    private static final int WIDTH = 4, HEIGHT = 3, SLICES = 40;
+
+    private final double[] x = new double[SLICES];
+    private final float[][] planes = new float[SLICES][WIDTH * HEIGHT];
+
+    /**
+     * A gaussian of height 10 and width 3 over a baseline of 1 per pixel,
+     * centered at 15 + column + row / 2.
+     */
+    public BatchFitterTest() {
+        final Random random = new Random(11);
+        for (int z = 0; z < SLICES; z++) {
+            x[z] = z;
+            for (int pixel = 0; pixel < WIDTH * HEIGHT; pixel++) {
+                final double u = (z - center(pixel)) / 3;
+                planes[z][pixel] = (float) (1 + 10 * Math.exp(-u * u / 2) + 0.05 * random.nextGaussian());
+            }
+        }
+    }
+
+    private static double center(int pixel) {
+        return 15 + pixel % WIDTH + 0.5 * (pixel / WIDTH);
+    }
+
+    private ImagePlus stack() {
+        ImageStack stack = new ImageStack(WIDTH, HEIGHT);
+        for (float[] plane : planes) {
+            stack.addSlice(new FloatProcessor(WIDTH, HEIGHT, plane.clone()));
+        }
+        return new ImagePlus("peaks", stack);
+    }
+
+    private Img<FloatType> image() {
+        Img<FloatType> img = ArrayImgs.floats(WIDTH, HEIGHT, SLICES);
+        RandomAccess<FloatType> ra = img.randomAccess();
+        for (int z = 0; z < SLICES; z++) {
+            for (int pixel = 0; pixel < WIDTH * HEIGHT; pixel++) {
+                ra.setPosition(new long[]{pixel % WIDTH, pixel / WIDTH, z});
+                ra.get().set(planes[z][pixel]);
+            }
+        }
+        return img;
+    }
+
+    /**
+     *
+     * @return the maps of an output stack, one array per slice
+     */
+    private static float[][] maps(ImagePlus imp) {
+        final float[][] maps = new float[imp.getStackSize()][];
+        for (int k = 0; k < maps.length; k++) {
+            maps[k] = (float[]) imp.getStack().getProcessor(k + 1).getPixels();
+        }
+        return maps;
+    }
+
+    private static float[][] maps(Img<FloatType> img) {
+        final float[][] maps = new float[(int) img.dimension(2)][WIDTH * HEIGHT];
+        RandomAccess<FloatType> ra = img.randomAccess();
+        for (int k = 0; k < maps.length; k++) {
+            for (int pixel = 0; pixel < WIDTH * HEIGHT; pixel++) {
+                ra.setPosition(new long[]{pixel % WIDTH, pixel / WIDTH, k});
+                maps[k][pixel] = ra.get().get();
+            }
+        }
+        return maps;
+    }
+
+    @Test
+    public void stackMapsHoldEachFit() {
+        final float[][] maps = maps(BatchFitter.create(GaussianFit.GaussianFitter::create, x).fit(stack()));
+        assertEquals(5, maps.length);
+        for (int pixel = 0; pixel < WIDTH * HEIGHT; pixel++) {
+            assertEquals(11, maps[1][pixel], 0.1);
+            assertEquals(center(pixel), maps[2][pixel], 0.05);
+            assertEquals(3, Math.abs(maps[3][pixel]), 0.05);
+            assertTrue(maps[4][pixel] > 0.99);
+        }
+    }
+
+    @Test
+    public void intervalMatchesStack() {
+        BatchFitter batch = BatchFitter.create(GaussianFit.GaussianFitter::create, x);
+        final float[][] expected = maps(batch.fit(stack()));
+        final Img<FloatType> out = batch.fit(image());
+        assertArrayEquals(new long[]{WIDTH, HEIGHT, 5}, new long[]{out.dimension(0), out.dimension(1), out.dimension(2)});
+        final float[][] actual = maps(out);
+        for (int k = 0; k < expected.length; k++) {
+            assertArrayEquals(expected[k], actual[k], 0);
+        }
+    }
+
+    @Test
+    public void warmStartFindsTheSameFits() {
+        BatchFitter batch = BatchFitter.create(GaussianFit.GaussianFitter::create, x);
+        final float[][] cold = maps(batch.fit(stack()));
+        batch.setWarmStart(true);
+        final float[][] warm = maps(batch.fit(stack()));
+        for (int k = 0; k < cold.length - 1; k++) {
+            for (int pixel = 0; pixel < WIDTH * HEIGHT; pixel++) {
+                assertEquals(Math.abs(cold[k][pixel]), Math.abs(warm[k][pixel]), 1e-3);
+            }
+        }
+    }
+
+    @Test
+    public void warmStartNeedsFewerIterations() {
+        // a peak drifting slowly over consecutive frames
+        final double[][] curves = new double[20][SLICES];
+        final Random random = new Random(13);
+        for (int frame = 0; frame < curves.length; frame++) {
+            for (int z = 0; z < SLICES; z++) {
+                final double u = (z - 15 - 0.02 * frame) / 3;
+                curves[frame][z] = 1 + 10 * Math.exp(-u * u / 2) + 0.05 * random.nextGaussian();
+            }
+        }
+        BatchFitter batch = BatchFitter.create(GaussianFit.GaussianFitter::create, x);
+        final FitResult[] cold = batch.fitSequence(curves);
+        batch.setWarmStart(true);
+        final FitResult[] warm = batch.fitSequence(curves);
+        int coldIterations = 0, warmIterations = 0;
+        for (int frame = 0; frame < curves.length; frame++) {
+            coldIterations += cold[frame].getIterations();
+            warmIterations += warm[frame].getIterations();
+            final double[] errors = cold[frame].getStandardErrors();
+            for (int k = 0; k < errors.length; k++) {
+                assertEquals(Math.abs(cold[frame].getParam(k)), Math.abs(warm[frame].getParam(k)), 1e-2 * errors[k]);
+            }
+        }
+        assertTrue(warmIterations < coldIterations);
+    }
+
+    @Test
+    public void unconvergedPixelsAreNaN() {
+        BatchFitter batch = BatchFitter.create((xpoints, ypoints) -> {
+            GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(xpoints, ypoints);
+            fitter.setConfiguration(FitConfiguration.DEFAULT.withMaxIterations(1));
+            return fitter;
+        }, x);
+        for (float[] map : maps(batch.fit(stack()))) {
+            for (float value : map) {
+                assertTrue(Float.isNaN(value));
+            }
+        }
+    }
+
+    @Test(expected = NoDataException.class)
+    public void rejectsAnEmptyInterval() {
+        // no column
+        BatchFitter.create(GaussianFit.GaussianFitter::create, x)
+                .fit(Views.interval(image(), new long[]{0, 0, 0}, new long[]{-1, HEIGHT - 1, SLICES - 1}));
+    }
+
+    @Test(expected = NoDataException.class)
+    public void rejectsAnEmptyAxis() {
+        BatchFitter.create(GaussianFit.GaussianFitter::create, new double[0]);
+    }
+}
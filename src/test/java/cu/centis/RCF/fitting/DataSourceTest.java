@@ -0,0 +1,58 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.nio.DoubleBuffer;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class DataSourceTest {
+
+    private final double[] data = {1, 2, 3, 4, 5, 6};
+
+    @Test
+    public void toArrayCopiesWholeArrays() {
+        final double[] array = DataSource.of(data).toArray();
+        assertNotSame(data, array);
+        assertArrayEquals(data, array, 0);
+        array[0] = -1;
+        assertArrayEquals(new double[]{1, 2, 3, 4, 5, 6}, data, 0);
+    }
+
+    @Test
+    public void toArrayCopiesWrappedBuffers() {
+        assertNotSame(data, DataSource.of(DoubleBuffer.wrap(data)).toArray());
+    }
+
+    @Test
+    public void factoriesKeepWholeArrays() {
+        assertSame(data, DataSource.of(data).values());
+        assertSame(data, DataSource.of(DoubleBuffer.wrap(data)).values());
+        assertNotSame(data, DataSource.of(data, 0, 1, 5).values());
+    }
+
+    @Test
+    public void slicesReadTheStridedValues() {
+        assertArrayEquals(new double[]{2, 4, 6}, DataSource.of(data, 1, 2, 3).toArray(), 0);
+        assertArrayEquals(new double[]{3, 4}, DataSource.of(DoubleBuffer.wrap(data, 2, 2)).toArray(), 0);
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class FitConfigurationTest {
+
+    @Test
+    public void monitorKeepsTheBestPointUntilTheDeadline() {
+        // built first, so the clock of the monitor only sees the evaluations
+        final RealVector near = new ArrayRealVector(new double[]{1, 1});
+        final RealVector far = new ArrayRealVector(new double[]{3, 4});
+        final RealVector late = new ArrayRealVector(new double[]{0, 0});
+        final RealMatrix identity = MatrixUtils.createRealIdentityMatrix(2);
+        // the model is the identity, the cost of a point is its squared norm,
+        // each evaluation takes 100 ms
+        RobustFitter.FitMonitor monitor = new RobustFitter.FitMonitor(TimeUnit.MILLISECONDS.toNanos(150));
+        monitor.attach(point -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return new Pair<>(point, identity);
+        }, new double[2], null);
+        monitor.value(near);
+        monitor.value(far);
+        try {
+            monitor.value(late);
+            fail("evaluated after the deadline");
+        } catch (MathIllegalStateException ex) {
+            assertArrayEquals(new double[]{1, 1}, monitor.getBest(), 0);
+        }
+    }
+
+    @Test
+    public void timeoutReturnsTheUnconvergedBestPoint() {
+        final double[] guess = {0.5, 8, 4.5, 1.5};
+        GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(new double[0], new double[0]);
+        // loads the classes of the solver, which would take the whole budget
+        fitter.fit(curve(100), peak(curve(100)), weights(100), guess);
+        // each evaluation takes milliseconds, a converged fit needs seven
+        final int n = 100000;
+        final double[] x = curve(n);
+        final double[] y = peak(x);
+        final double[] w = weights(n);
+        fitter.setConfiguration(FitConfiguration.DEFAULT.withTimeout(40, TimeUnit.MILLISECONDS));
+        final FitResult result = fitter.fit(x, y, w, guess);
+        assertFalse(result.isConverged());
+        final FitResult start = fitter.createResult(x, y, w, guess, null, 0, 0);
+        assertTrue(result.getWeightedSumOfSquaredResiduals() <= start.getWeightedSumOfSquaredResiduals());
+    }
+
+    private static double[] curve(int n) {
+        final double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = 10.0 * i / n;
+        }
+        return x;
+    }
+
+    private static double[] peak(double[] x) {
+        final double[] y = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = 1 + 10 * Math.exp(-(x[i] - 5) * (x[i] - 5) / 2);
+        }
+        return y;
+    }
+
+    private static double[] weights(int n) {
+        final double[] w = new double[n];
+        Arrays.fill(w, 1);
+        return w;
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import cu.centis.RCF.fitting.GaussianFit.GaussianFitter;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The linearized fit against the plain LM fit.
+ *
+ * @author alex.vergara
+ */
+public class GaussianFitterTest {
+
+    private static final int SIZE = 200;
+
+    private final double[] x = new double[SIZE];
+    private final double[] y = new double[SIZE];
+
+    public GaussianFitterTest() {
+        final Random random = new Random(3);
+        for (int i = 0; i < SIZE; i++) {
+            x[i] = 0.1 * i;
+            y[i] = 1 + 10 * Math.exp(-(x[i] - 9) * (x[i] - 9) / 2) + 0.05 * random.nextGaussian();
+        }
+    }
+
+    private FitResult plain() {
+        GaussianFitter fitter = GaussianFitter.create(x, y);
+        fitter.fit();
+        return fitter.getResult();
+    }
+
+    @Test
+    public void closedFormIsCloseToLM() {
+        final double[] expected = plain().getParams();
+        GaussianFitter fitter = GaussianFitter.create(x, y);
+        fitter.setLinearized(true);
+        fitter.setRefinementIterations(0);
+        fitter.fit();
+        final double[] actual = fitter.getParams();
+        // the baseline is the minimum of the data, the rest follows from it
+        assertEquals(expected[0], actual[0], 0.15);
+        assertEquals(expected[1], actual[1], 0.05);
+        assertEquals(expected[2], actual[2], 0.005);
+        assertEquals(expected[3], actual[3], 0.02);
+    }
+
+    @Test
+    public void refinedFitMatchesLM() {
+        final FitResult expected = plain();
+        GaussianFitter fitter = GaussianFitter.create(x, y);
+        fitter.setLinearized(true);
+        fitter.fit();
+        final double[] errors = expected.getStandardErrors();
+        for (int i = 0; i < errors.length; i++) {
+            assertEquals(expected.getParam(i), fitter.getParams()[i], 1e-3 * errors[i]);
+        }
+        assertTrue(fitter.getResult().getIterations() <= expected.getIterations());
+    }
+
+    @Test
+    public void refinementIsCapped() {
+        GaussianFitter fitter = GaussianFitter.create(x, y);
+        fitter.setLinearized(true);
+        fitter.setRefinementIterations(2);
+        fitter.fit();
+        assertTrue(fitter.getResult().getIterations() <= 2);
+    }
+
+    @Test
+    public void thresholdLeavingTooFewPointsFallsBackToLM() {
+        // only the maximum is above 99.9% of the height
+        GaussianFitter fitter = GaussianFitter.create(x, y);
+        fitter.setLinearized(true);
+        fitter.setLinearizedThreshold(0.999);
+        fitter.fit();
+        assertArrayEquals(plain().getParams(), fitter.getParams(), 0);
+    }
+
+    @Test
+    public void higherThresholdKeepsTheEstimate() {
+        GaussianFitter fitter = GaussianFitter.create(x, y);
+        fitter.setLinearized(true);
+        fitter.setRefinementIterations(0);
+        fitter.setLinearizedThreshold(0.5);
+        fitter.fit();
+        final double[] params = fitter.getParams();
+        assertEquals(9, params[2], 0.005);
+        assertEquals(1, Math.abs(params[3]), 0.02);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import cu.centis.RCF.fitting.PolinomialFit.IncrementalPolinomialFitter;
+import cu.centis.RCF.fitting.PolinomialFit.PolinomialFitter;
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.math3.exception.NotPositiveException;
+import org.apache.commons.math3.exception.NotStrictlyPositiveException;
+import org.apache.commons.math3.exception.OutOfRangeException;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * The incremental fits against the weighted batch fit of the samples they
+ * keep, with the forgetting factor applied as weights.
+ *
+ * @author alex.vergara
+ */
+public class IncrementalPolinomialFitterTest {
+
+    private static final int ORDER = 2;
+    private static final int SAMPLES = 500;
+
+    private final double[] x = new double[SAMPLES];
+    private final double[] y = new double[SAMPLES];
+    private final double[] w = new double[SAMPLES];
+
+    public IncrementalPolinomialFitterTest() {
+        final Random random = new Random(7);
+        for (int i = 0; i < SAMPLES; i++) {
+            x[i] = 0.01 * i;
+            // a drifting curve, so old samples matter
+            y[i] = 1 + 2 * x[i] - 0.5 * x[i] * x[i] + 0.3 * Math.sin(x[i]) + 0.05 * random.nextGaussian();
+            w[i] = 0.5 + random.nextDouble();
+        }
+    }
+
+    /**
+     *
+     * @return the batch fit of the last count samples, each weight
+     * multiplied by lambda^age
+     */
+    private double[] batch(int count, double lambda) {
+        final int from = SAMPLES - count;
+        final double[] weights = Arrays.copyOfRange(w, from, SAMPLES);
+        for (int i = 0; i < count; i++) {
+            weights[i] *= Math.pow(lambda, count - 1 - i);
+        }
+        PolinomialFitter fitter = PolinomialFitter.create(ORDER,
+                Arrays.copyOfRange(x, from, SAMPLES), Arrays.copyOfRange(y, from, SAMPLES));
+        return fitter.fit(fitter.getXPoints(), fitter.getYPoints(), weights, new double[ORDER + 1]).getParams();
+    }
+
+    private double[] stream(IncrementalPolinomialFitter fitter) {
+        for (int i = 0; i < SAMPLES; i++) {
+            fitter.add(x[i], y[i], w[i]);
+        }
+        return fitter.getParams();
+    }
+
+    @Test
+    public void growingMatchesBatch() {
+        assertArrayEquals(batch(SAMPLES, 1), stream(IncrementalPolinomialFitter.create(ORDER)), 1e-9);
+    }
+
+    @Test
+    public void windowMatchesBatch() {
+        // 500 is not a multiple of the window, the last rebuild is followed by downdates
+        final int window = 70;
+        assertArrayEquals(batch(window, 1), stream(IncrementalPolinomialFitter.createWindowed(ORDER, window)), 1e-9);
+    }
+
+    @Test
+    public void forgettingMatchesWeightedBatch() {
+        final double lambda = 0.97;
+        IncrementalPolinomialFitter fitter = IncrementalPolinomialFitter.create(ORDER);
+        fitter.setForgetting(lambda);
+        assertArrayEquals(batch(SAMPLES, lambda), stream(fitter), 1e-9);
+    }
+
+    @Test
+    public void windowWithForgettingMatchesWeightedBatch() {
+        final int window = 70;
+        final double lambda = 0.97;
+        IncrementalPolinomialFitter fitter = IncrementalPolinomialFitter.createWindowed(ORDER, window);
+        fitter.setForgetting(lambda);
+        // the downdates of rescaled samples round a little more
+        assertArrayEquals(batch(window, lambda), stream(fitter), 1e-8);
+    }
+
+    @Test
+    public void linearWindowMatchesBatch() {
+        final int window = 40;
+        LinearFit.IncrementalLinearFitter fitter = LinearFit.IncrementalLinearFitter.createWindowed(window);
+        for (int i = 0; i < SAMPLES; i++) {
+            fitter.add(x[i], y[i], w[i]);
+        }
+        final int from = SAMPLES - window;
+        LinearFit.LinearFitter batch = LinearFit.LinearFitter.create(
+                Arrays.copyOfRange(x, from, SAMPLES), Arrays.copyOfRange(y, from, SAMPLES));
+        batch.setWeights(Arrays.copyOfRange(w, from, SAMPLES));
+        batch.fit();
+        assertArrayEquals(batch.getParams(), fitter.getParams(), 1e-9);
+    }
+
+    @Test(expected = NotStrictlyPositiveException.class)
+    public void rejectsEmptyWindow() {
+        IncrementalPolinomialFitter.createWindowed(ORDER, 0);
+    }
+
+    @Test(expected = NotStrictlyPositiveException.class)
+    public void rejectsNegativeLinearWindow() {
+        LinearFit.IncrementalLinearFitter.createWindowed(-3);
+    }
+
+    @Test(expected = NotPositiveException.class)
+    public void rejectsNegativeOrder() {
+        IncrementalPolinomialFitter.create(-1);
+    }
+
+    @Test(expected = OutOfRangeException.class)
+    public void rejectsZeroForgetting() {
+        IncrementalPolinomialFitter.create(ORDER).setForgetting(0);
+    }
+
+    @Test(expected = OutOfRangeException.class)
+    public void rejectsForgettingAboveOne() {
+        IncrementalPolinomialFitter.create(ORDER).setForgetting(1.5);
+    }
+
+    @Test(expected = OutOfRangeException.class)
+    public void rejectsNaNForgetting() {
+        IncrementalPolinomialFitter.create(ORDER).setForgetting(Double.NaN);
+    }
+}
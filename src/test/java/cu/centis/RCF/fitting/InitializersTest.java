@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class InitializersTest {
+
+    private static final int SIZE = 200;
+
+    private static double[] abscissas() {
+        final double[] x = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            x[i] = 0.1 * i;
+        }
+        return x;
+    }
+
+    /**
+     *
+     * @param peaks {height, center, width} of each peak over a baseline of 1
+     */
+    private static double[] peaks(double[] x, double[]... peaks) {
+        final double[] y = new double[x.length];
+        for (int i = 0; i < x.length; i++) {
+            y[i] = 1;
+            for (double[] peak : peaks) {
+                final double u = (x[i] - peak[1]) / peak[2];
+                y[i] += peak[0] * Math.exp(-u * u / 2);
+            }
+        }
+        return y;
+    }
+
+    @Test
+    public void gaussianFromHalfMaximum() {
+        final double[] x = abscissas();
+        final double[] guess = Initializers.gaussian(x, peaks(x, new double[]{10, 9, 1.5}));
+        assertEquals(1, guess[0], 0.01);
+        assertEquals(11, guess[1], 0.01);
+        assertEquals(9, guess[2], 0.05);
+        assertEquals(1.5, guess[3], 0.05);
+    }
+
+    @Test
+    public void multiGaussianFromEachMaximum() {
+        final double[] x = abscissas();
+        final double[] guess = Initializers.multiGaussian(x,
+                peaks(x, new double[]{10, 5, 1}, new double[]{6, 14, 1.5}), 2);
+        assertEquals(1, guess[0], 0.01);
+        assertEquals(10, guess[1], 0.05);
+        assertEquals(5, guess[2], 0.05);
+        assertEquals(1, guess[3], 0.05);
+        assertEquals(6, guess[4], 0.05);
+        assertEquals(14, guess[5], 0.05);
+        assertEquals(1.5, guess[6], 0.05);
+    }
+
+    @Test
+    public void missingPeaksShareTheTallestOne() {
+        final double[] x = abscissas();
+        final double[] guess = Initializers.multiGaussian(x, peaks(x, new double[]{9, 10, 1}), 3);
+        // three pieces of a third of the height, around the center
+        final double[] heights = {guess[1], guess[4], guess[7]};
+        final double[] centers = {guess[2], guess[5], guess[8]};
+        Arrays.sort(centers);
+        for (double height : heights) {
+            assertEquals(3, height, 0.01);
+        }
+        assertEquals(10, centers[1], 0.05);
+        assertEquals(centers[1] - guess[3], centers[0], 1e-9);
+        assertEquals(centers[1] + guess[3], centers[2], 1e-9);
+    }
+
+    private static double[] sine(double[] x) {
+        final double[] y = new double[x.length];
+        final Random random = new Random(5);
+        for (int i = 0; i < x.length; i++) {
+            y[i] = 2 + 3 * Math.sin(1.3 * x[i] + 0.4) + 0.1 * random.nextGaussian();
+        }
+        return y;
+    }
+
+    @Test
+    public void sineFromTheSpectrum() {
+        final double[] x = abscissas();
+        final double[] guess = Initializers.sine(x, sine(x));
+        assertEquals(2, guess[0], 0.1);
+        assertEquals(3, guess[1], 0.3);
+        assertEquals(1.3, guess[2], 0.02);
+        assertEquals(0.4, guess[3], 0.3);
+    }
+
+    @Test
+    public void sineFromThePeriodogram() {
+        // unevenly sampled over the same range
+        final double[] x = new double[SIZE];
+        final Random random = new Random(9);
+        for (int i = 0; i < SIZE; i++) {
+            x[i] = 20 * random.nextDouble();
+        }
+        Arrays.sort(x);
+        final double[] guess = Initializers.sine(x, sine(x));
+        final double span = x[SIZE - 1] - x[0];
+        // within half the spacing of the frequency grid
+        assertEquals(1.3, guess[2], Math.PI / span);
+        assertEquals(2, guess[0], 0.5);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import cu.centis.RCF.fitting.MultiGaussianFit.Criterion;
+import cu.centis.RCF.fitting.MultiGaussianFit.MultiGaussianFitter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class MultiGaussianFitterTest {
+
+    private static final int SIZE = 100;
+
+    private static double[] abscissas() {
+        final double[] x = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            x[i] = i;
+        }
+        return x;
+    }
+
+    /**
+     *
+     * @param peaks {height, center, width} of each peak over a baseline of 1
+     * @return the curve with gaussian noise
+     */
+    private static double[] peaks(double noise, long seed, double[]... peaks) {
+        final Random random = new Random(seed);
+        final double[] y = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            y[i] = 1 + noise * random.nextGaussian();
+            for (double[] peak : peaks) {
+                final double u = (i - peak[1]) / peak[2];
+                y[i] += peak[0] * Math.exp(-u * u / 2);
+            }
+        }
+        return y;
+    }
+
+    @Test
+    public void autoModeUsesTheBoundsOfEachModel() {
+        final double[] y = peaks(0.1, 1, new double[]{10, 30, 4}, new double[]{6, 60, 4});
+        MultiGaussianFitter fitter = MultiGaussianFitter.createAuto(2, abscissas(), y);
+        final double inf = Double.POSITIVE_INFINITY;
+        final double[] lower = {-inf, 0, 0, 1, 0, 0, 1};
+        final double[] upper = {inf, 100, 100, 20, 100, 100, 20};
+        fitter.setBounds(lower, upper);
+        fitter.fit();
+        assertEquals(2, fitter.getNumPeaks());
+        final double[] params = fitter.getParams();
+        for (int i = 0; i < params.length; i++) {
+            assertTrue(params[i] >= lower[i] && params[i] <= upper[i]);
+        }
+        assertEquals(30, Math.min(params[2], params[5]), 0.1);
+        assertEquals(60, Math.max(params[2], params[5]), 0.1);
+    }
+
+    private static int autoPeaks(Criterion criterion, double[] y) {
+        MultiGaussianFitter fitter = MultiGaussianFitter.createAuto(4, abscissas(), y);
+        fitter.setCriterion(criterion);
+        fitter.fit();
+        return fitter.getNumPeaks();
+    }
+
+    @Test
+    public void autoModeRecoversOnePeak() {
+        for (long seed = 1; seed <= 5; seed++) {
+            // a clean peak, no narrow noise peak is added next to it
+            assertEquals(1, autoPeaks(Criterion.BIC, peaks(0.2, seed, new double[]{20, 50, 5})));
+        }
+    }
+
+    @Test
+    public void autoModeRecoversTwoPeaks() {
+        for (long seed = 1; seed <= 5; seed++) {
+            assertEquals(2, autoPeaks(Criterion.BIC,
+                    peaks(0.2, seed, new double[]{10, 30, 4}, new double[]{6, 60, 4})));
+        }
+    }
+
+    @Test
+    public void autoModeRecoversThreePeaks() {
+        for (long seed = 1; seed <= 5; seed++) {
+            assertEquals(3, autoPeaks(Criterion.BIC,
+                    peaks(0.2, seed, new double[]{10, 20, 4}, new double[]{8, 50, 5}, new double[]{6, 80, 3})));
+        }
+    }
+
+    @Test
+    public void bicPenalizesParametersMoreThanAic() {
+        final double fit = 100 * Math.log(0.01);
+        assertEquals(2 * 4, Criterion.AIC.score(1, 100, 4) - fit, 1e-9);
+        assertEquals(4 * Math.log(100), Criterion.BIC.score(1, 100, 4) - fit, 1e-9);
+    }
+
+    @Test
+    public void aicKeepsAWeakPeakThatBicDrops() {
+        final double[] y = peaks(0.2, 7, new double[]{10, 35, 4}, new double[]{0.25, 70, 8});
+        assertEquals(2, autoPeaks(Criterion.AIC, y));
+        assertEquals(1, autoPeaks(Criterion.BIC, y));
+    }
+
+    /**
+     * One thread, counting the starts that were run and not cancelled. Each
+     * start is slowed down so the results are seen before the queue drains.
+     */
+    private static class CountingExecutor extends ThreadPoolExecutor {
+
+        final AtomicInteger ran = new AtomicInteger();
+
+        CountingExecutor() {
+            super(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        }
+
+        @Override
+        protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+            return new FutureTask<>(() -> {
+                ran.incrementAndGet();
+                Thread.sleep(50);
+                return callable.call();
+            });
+        }
+    }
+
+    private static final double[] TWO_PEAKS = {1, 10, 30, 4, 6, 60, 4};
+
+    @Test
+    public void startsPerturbTheGuess() {
+        MultiGaussianFitter fitter = MultiGaussianFitter.create(2, abscissas(), new double[SIZE]);
+        final double[][] starts = fitter.getStarts(TWO_PEAKS, 5);
+        assertEquals(5, starts.length);
+        assertArrayEquals(TWO_PEAKS, starts[0], 0);
+        assertArrayEquals(new double[]{1, 10, 30, 2, 6, 60, 2}, starts[1], 0);
+        assertArrayEquals(new double[]{1, 10, 30, 8, 6, 60, 8}, starts[2], 0);
+        // the tallest peak split in two, replacing the smallest one
+        assertArrayEquals(new double[]{1, 5, 28, 2, 5, 32, 2}, starts[3], 0);
+        // random centers and widths
+        assertEquals(1, starts[4][0], 0);
+        assertEquals(10, starts[4][1], 0);
+        assertEquals(6, starts[4][4], 0);
+        assertFalse(starts[4][2] == 30 && starts[4][3] == 4);
+    }
+
+    @Test
+    public void multiStartLeavesALocalMinimum() {
+        final double[] y = peaks(0.1, 1, new double[]{10, 40, 4}, new double[]{6, 52, 4});
+        // one wide peak over both, the second one far away
+        final double[] guess = {1, 10, 46, 10, 3, 20, 4};
+        final double[] weights = new double[SIZE];
+        Arrays.fill(weights, 1);
+        MultiGaussianFitter fitter = MultiGaussianFitter.create(2, abscissas(), y);
+        final double single = fitter.fit(fitter.getXPoints(), y, weights, guess)
+                .getWeightedSumOfSquaredResiduals();
+        fitter.setMultiStart(8);
+        final double multi = fitter.fit(fitter.getXPoints(), y, weights, guess)
+                .getWeightedSumOfSquaredResiduals();
+        assertTrue(single + " " + multi, multi < 0.1 * single);
+    }
+
+    @Test
+    public void agreeingStartsCancelThePendingOnes() {
+        final double[] y = peaks(0.1, 1, new double[]{10, 30, 4}, new double[]{6, 60, 4});
+        MultiGaussianFitter fitter = MultiGaussianFitter.create(2, abscissas(), y);
+        CountingExecutor executor = new CountingExecutor();
+        try {
+            fitter.setExecutor(executor);
+            fitter.setMultiStart(8);
+            fitter.fit();
+            assertTrue(fitter.getResult().isConverged());
+            assertTrue("ran " + executor.ran.get(), executor.ran.get() < 8);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void unconvergedStartsAreAllRun() {
+        final double[] y = peaks(0.1, 1, new double[]{10, 30, 4}, new double[]{6, 60, 4});
+        MultiGaussianFitter fitter = MultiGaussianFitter.create(2, abscissas(), y);
+        fitter.setConfiguration(FitConfiguration.DEFAULT.withMaxIterations(2));
+        CountingExecutor executor = new CountingExecutor();
+        try {
+            fitter.setExecutor(executor);
+            fitter.setMultiStart(8);
+            fitter.fit();
+            assertFalse(fitter.getResult().isConverged());
+            assertEquals(8, executor.ran.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The resampled errors against the errors from the covariance.
+ *
+ * @author alex.vergara
+ */
+public class ResamplingTest {
+
+    private static final int SIZE = 200;
+
+    @Test
+    public void jackknifeErrorsMatchTheCovariance() {
+        final double[] x = new double[SIZE];
+        final double[] y = new double[SIZE];
+        final Random random = new Random(17);
+        for (int i = 0; i < SIZE; i++) {
+            x[i] = 0.1 * i;
+            y[i] = 2 + 0.5 * x[i] + 0.3 * random.nextGaussian();
+        }
+        LinearFit.LinearFitter fitter = LinearFit.LinearFitter.create(x, y);
+        fitter.fit();
+        final double[] expected = fitter.getResult().getStandardErrors();
+        Resampling.Result result = Resampling.create(fitter).jackknife();
+        assertEquals(0, result.getFailures());
+        final double[] errors = result.getStandardErrors();
+        // homoscedastic errors, both estimate the same spread
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], errors[i], 0.1 * expected[i]);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import cu.centis.RCF.fitting.RobustFitter.WeightFunction;
+import java.util.Random;
+import org.apache.commons.math3.stat.descriptive.rank.Median;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author alex.vergara
+ */
+public class RobustFitterTest {
+
+    private static final int SIZE = 200;
+
+    private static double[] abscissas() {
+        final double[] x = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            x[i] = 0.1 * i;
+        }
+        return x;
+    }
+
+    private static double[] peak() {
+        final double[] x = abscissas();
+        final double[] y = new double[SIZE];
+        final Random random = new Random(3);
+        for (int i = 0; i < SIZE; i++) {
+            y[i] = 1 + 10 * Math.exp(-(x[i] - 9) * (x[i] - 9) / 2) + 0.05 * random.nextGaussian();
+        }
+        return y;
+    }
+
+    @Test
+    public void cleanGaussianStopsEarly() {
+        GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(abscissas(), peak());
+        fitter.fit();
+        final int iterations = fitter.runIRLS(30);
+        assertTrue("IRLS iterations " + iterations, iterations <= 2);
+    }
+
+    @Test
+    public void cleanLineStopsEarly() {
+        final double[] x = abscissas();
+        final double[] y = new double[SIZE];
+        final Random random = new Random(3);
+        for (int i = 0; i < SIZE; i++) {
+            y[i] = 2 + 3 * x[i] + 0.05 * random.nextGaussian();
+        }
+        LinearFit.LinearFitter fitter = LinearFit.LinearFitter.create(x, y);
+        fitter.fit();
+        final int iterations = fitter.runIRLS(30);
+        assertTrue("IRLS iterations " + iterations, iterations <= 2);
+    }
+
+    @Test(expected = MathIllegalStateException.class)
+    public void standardErrorsNeedAFit() {
+        GaussianFit.GaussianFitter.create(abscissas(), peak()).getStandardErrors();
+    }
+
+    @Test(expected = MathIllegalStateException.class)
+    public void resolutionErrorsNeedAFit() {
+        MultiGaussianFit.MultiGaussianFitter.create(1, abscissas(), peak()).getResolutionErrors(0);
+    }
+
+    @Test
+    public void closedFormHasNaNErrors() {
+        GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(abscissas(), peak());
+        fitter.setLinearized(true);
+        fitter.setRefinementIterations(0);
+        fitter.fit();
+        for (double error : fitter.getResolutionErrors()) {
+            assertTrue(Double.isNaN(error));
+        }
+        for (double bound : fitter.getConfidenceIntervals(0.95)[0]) {
+            assertTrue(Double.isNaN(bound));
+        }
+    }
+
+    /**
+     * The peak has width 1, an upper bound of 0.8 holds it on the bound.
+     */
+    private static void assertWidthErrorUndetermined(boolean projection) {
+        GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(abscissas(), peak());
+        final double inf = Double.POSITIVE_INFINITY;
+        fitter.setBounds(new double[]{-inf, -inf, -inf, 0.1}, new double[]{inf, inf, inf, 0.8});
+        fitter.setVariableProjection(projection);
+        fitter.fit();
+        final double[] errors = fitter.getStandardErrors();
+        assertTrue(Math.abs(fitter.getParams()[3] - 0.8) < 1e-6);
+        assertTrue(Double.isNaN(errors[3]));
+        for (int i = 0; i < 3; i++) {
+            assertFalse(Double.isNaN(errors[i]));
+        }
+    }
+
+    @Test
+    public void parameterOnItsBoundHasNaNError() {
+        assertWidthErrorUndetermined(false);
+    }
+
+    @Test
+    public void projectedParameterOnItsBoundHasNaNError() {
+        assertWidthErrorUndetermined(true);
+    }
+
+    @Test
+    public void interiorParametersKeepTheirErrors() {
+        GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(abscissas(), peak());
+        final double inf = Double.POSITIVE_INFINITY;
+        fitter.setBounds(new double[]{-inf, -inf, -inf, 0.1}, new double[]{inf, inf, inf, 5});
+        fitter.fit();
+        for (double error : fitter.getStandardErrors()) {
+            assertTrue(error > 0 && error < 0.1);
+        }
+    }
+
+    /**
+     * y = 2 + 3x with every tenth point raised by 5.
+     */
+    private static LinearFit.LinearFitter lineWithOutliers() {
+        final double[] x = abscissas();
+        final double[] y = new double[SIZE];
+        final Random random = new Random(3);
+        for (int i = 0; i < SIZE; i++) {
+            y[i] = 2 + 3 * x[i] + 0.05 * random.nextGaussian() + (i % 10 == 5 ? 5 : 0);
+        }
+        return LinearFit.LinearFitter.create(x, y);
+    }
+
+    @Test
+    public void tukeyRecoversFromABiasedStart() {
+        // the least squares line is raised by the outliers far more than the
+        // spread of the residuals about their median
+        LinearFit.LinearFitter fitter = lineWithOutliers();
+        fitter.setWeightFunction(WeightFunction.TUKEY);
+        fitter.fit();
+        fitter.runIRLS(30);
+        assertEquals(2, fitter.f(0), 0.05);
+    }
+
+    private static final WeightFunction[] ROBUST = {
+        WeightFunction.HUBER, WeightFunction.TUKEY, WeightFunction.CAUCHY, WeightFunction.WELSCH
+    };
+
+    @Test
+    public void outliersAreDownWeighted() {
+        for (WeightFunction function : ROBUST) {
+            LinearFit.LinearFitter fitter = lineWithOutliers();
+            fitter.setWeightFunction(function);
+            fitter.fit();
+            fitter.runIRLS(30);
+            for (int i = 5; i < SIZE; i += 10) {
+                assertTrue(function + " weight " + fitter.weights[i], fitter.weights[i] < 0.05);
+            }
+            assertEquals(function.toString(), 2, fitter.f(0), 0.05);
+            assertEquals(function.toString(), 3, fitter.f(1) - fitter.f(0), 0.01);
+        }
+    }
+
+    @Test
+    public void toleranceStopsTheIterations() {
+        for (WeightFunction function : ROBUST) {
+            LinearFit.LinearFitter loose = lineWithOutliers();
+            loose.setWeightFunction(function);
+            loose.setIRLSTolerance(1e-2);
+            loose.fit();
+            LinearFit.LinearFitter tight = lineWithOutliers();
+            tight.setWeightFunction(function);
+            tight.setIRLSTolerance(1e-10);
+            tight.fit();
+            final int few = loose.runIRLS(100);
+            final int many = tight.runIRLS(100);
+            assertTrue(function + " " + few + " " + many, few >= 1 && few < many && many < 100);
+        }
+    }
+
+    @Test
+    public void weightsFollowTheMADScale() {
+        for (WeightFunction function : ROBUST) {
+            LinearFit.LinearFitter fitter = lineWithOutliers();
+            fitter.setWeightFunction(function);
+            fitter.fit();
+            final double[] x = fitter.getXPoints();
+            final double[] residuals = new double[SIZE];
+            final double[] deviations = new double[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                residuals[i] = fitter.getYPoints()[i] - fitter.f(x[i]);
+                deviations[i] = Math.abs(residuals[i]);
+            }
+            final double scale = new Median().evaluate(deviations) / 0.6745;
+            assertEquals(1, fitter.runIRLS(1));
+            for (int i = 0; i < SIZE; i++) {
+                assertEquals(function.toString(), function.weight(residuals[i], scale), fitter.weights[i], 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void settledAbsoluteWeightsRefitNothing() {
+        GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(abscissas(), peak());
+        fitter.fit();
+        assertEquals(0, fitter.runIRLS(30));
+    }
+}
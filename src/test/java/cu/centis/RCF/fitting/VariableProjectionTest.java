@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 CENTIS.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cu.centis.RCF.fitting;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.util.Pair;
+import org.junit.Test;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The projected fits against the plain fits of the full models.
+ *
+ * @author alex.vergara
+ */
+public class VariableProjectionTest {
+
+    private static final int SIZE = 200;
+
+    private final double[] x = new double[SIZE];
+    private final double[] ones = new double[SIZE];
+
+    public VariableProjectionTest() {
+        for (int i = 0; i < SIZE; i++) {
+            x[i] = 0.1 * i;
+        }
+        Arrays.fill(ones, 1);
+    }
+
+    private static void assertSameFit(FitResult expected, FitResult actual) {
+        assertTrue(actual.isConverged());
+        // both stop within the tolerances of the solver, far below the errors
+        final double[] errors = expected.getStandardErrors();
+        for (int i = 0; i < errors.length; i++) {
+            assertEquals(expected.getParam(i), actual.getParam(i), 1e-3 * errors[i]);
+        }
+        final double[][] covariance = expected.getCovariance();
+        for (int i = 0; i < covariance.length; i++) {
+            for (int j = 0; j < covariance.length; j++) {
+                final double scale = Math.sqrt(covariance[i][i] * covariance[j][j]);
+                assertEquals(covariance[i][j], actual.getCovariance()[i][j], 1e-4 * scale);
+            }
+        }
+    }
+
+    @Test
+    public void gaussianMatchesFullFit() {
+        final double[] y = new double[SIZE];
+        final Random random = new Random(3);
+        for (int i = 0; i < SIZE; i++) {
+            y[i] = 1 + 10 * Math.exp(-(x[i] - 9) * (x[i] - 9) / 2) + 0.05 * random.nextGaussian();
+        }
+        GaussianFit.GaussianFitter fitter = GaussianFit.GaussianFitter.create(x, y);
+        final FitResult full = fitter.fit(x, y, ones);
+        fitter.setVariableProjection(true);
+        assertSameFit(full, fitter.fit(x, y, ones));
+    }
+
+    @Test
+    public void sineMatchesFullFit() {
+        final double[] y = new double[SIZE];
+        final Random random = new Random(5);
+        for (int i = 0; i < SIZE; i++) {
+            y[i] = 2 + 3 * Math.sin(1.3 * x[i] + 0.4) + 0.1 * random.nextGaussian();
+        }
+        SineFit.SineFitter fitter = SineFit.SineFitter.create(x, y);
+        final FitResult full = fitter.fit(x, y, ones);
+        fitter.setVariableProjection(true);
+        assertSameFit(full, fitter.fit(x, y, ones));
+    }
+
+    @Test
+    public void jacobianMatchesFiniteDifferences() {
+        MultiGaussianFit.FMultiGauss function = new MultiGaussianFit.FMultiGauss();
+        function.setnpeaks(2);
+        final double[] y = new double[SIZE];
+        function.valueAll(x, new double[]{1, 10, 8, 1.5, 6, 12, 2}, y);
+        VariableProjection projection = new VariableProjection(function, x, y, ones);
+        // away from the solution, where the residual term matters
+        final double[] theta = {7.5, 1.2, 12.5, 2.5};
+        final Pair<RealVector, RealMatrix> value = projection.value(new ArrayRealVector(theta));
+        final double h = 1e-6;
+        for (int j = 0; j < theta.length; j++) {
+            final double[] plus = theta.clone();
+            final double[] minus = theta.clone();
+            plus[j] += h;
+            minus[j] -= h;
+            final RealVector difference = projection.value(new ArrayRealVector(plus)).getFirst()
+                    .subtract(projection.value(new ArrayRealVector(minus)).getFirst()).mapDivide(2 * h);
+            assertArrayEquals(difference.toArray(), value.getSecond().getColumn(j), 1e-5);
+        }
+    }
+
+    @Test
+    public void singularBasisIsSolvedWithTheRidge() {
+        // two peaks on the same place have the same basis function
+        MultiGaussianFit.FMultiGauss function = new MultiGaussianFit.FMultiGauss();
+        function.setnpeaks(2);
+        final double[] y = new double[SIZE];
+        function.valueAll(x, new double[]{1, 10, 9, 1, 0, 9, 1}, y);
+        VariableProjection projection = new VariableProjection(function, x, y, ones);
+        final double[] linear = projection.linear(new double[]{9, 1, 9, 1});
+        assertEquals(1, linear[0], 1e-6);
+        assertEquals(linear[1], linear[2], 1e-6);
+        assertEquals(10, linear[1] + linear[2], 1e-6);
+        for (double v : projection.value(new ArrayRealVector(new double[]{9, 1, 9, 1})).getSecond().getColumn(0)) {
+            assertTrue(Double.isFinite(v));
+        }
+    }
+}